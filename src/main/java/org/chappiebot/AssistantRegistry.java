@@ -0,0 +1,60 @@
+package org.chappiebot;
+
+import io.quarkus.logging.Log;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Fully configured AI services (the Assistant proxies), built once per configuration and then shared.
+ * Building one (reflection, the proxy and its templates) is done at startup, so never on a request.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class AssistantRegistry {
+
+    private final Map<Key, Registered> assistants = new ConcurrentHashMap<>();
+
+    /**
+     * The assistant for this configuration, built by the builder the first time
+     */
+    public <T> T get(Class<T> type, String model, boolean rag, String tools, Supplier<T> builder) {
+        Registered registered = assistants.computeIfAbsent(new Key(type, model, rag, tools), key -> {
+            long start = System.nanoTime();
+            Object assistant = builder.get();
+            long nanos = System.nanoTime() - start;
+            Log.infof("CHAPPiE built the %s for %s (rag %s, tools %s) in %.1f ms", type.getSimpleName(), model,
+                    rag ? "on" : "off", tools, nanos / 1_000_000.0);
+            return new Registered(assistant, nanos);
+        });
+        registered.lookups.incrementAndGet();
+        return type.cast(registered.assistant);
+    }
+
+    public List<Stats> stats() {
+        return assistants.entrySet().stream()
+                .map(e -> new Stats(e.getKey().type().getSimpleName(), e.getKey().model(), e.getKey().rag(), e.getKey().tools(),
+                        e.getValue().buildNanos / 1_000_000.0, e.getValue().lookups.get()))
+                .toList();
+    }
+
+    private record Key(Class<?> type, String model, boolean rag, String tools) {}
+
+    private static class Registered {
+        final Object assistant;
+        final long buildNanos;
+        final AtomicLong lookups = new AtomicLong();
+
+        Registered(Object assistant, long buildNanos) {
+            this.assistant = assistant;
+            this.buildNanos = buildNanos;
+        }
+    }
+
+    /**
+     * @param buildMillis what building the assistant took
+     * @param lookups how often it was handed out (once per injection)
+     */
+    public record Stats(String type, String model, boolean rag, String tools, double buildMillis, long lookups) {}
+}
@@ -10,22 +10,32 @@ import dev.langchain4j.mcp.client.transport.stdio.StdioMcpTransport;
 
 import java.time.Duration;
 import java.util.Optional;
+import java.util.function.Function;
 
 import org.chappiebot.assist.Assistant;
+import org.chappiebot.assist.StreamingAssistant;
 import org.chappiebot.rag.RetrievalProvider;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import dev.langchain4j.memory.ChatMemory;
 import dev.langchain4j.memory.chat.ChatMemoryProvider;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import dev.langchain4j.memory.chat.TokenWindowChatMemory;
 import dev.langchain4j.model.anthropic.AnthropicChatModel;
+import dev.langchain4j.model.anthropic.AnthropicStreamingChatModel;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.request.ChatRequestParameters;
 import dev.langchain4j.model.chat.request.DefaultChatRequestParameters;
 import dev.langchain4j.model.chat.request.ResponseFormat;
 import dev.langchain4j.model.chat.request.ToolChoice;
 import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
+import dev.langchain4j.model.googleai.GoogleAiGeminiStreamingChatModel;
 import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
 import dev.langchain4j.model.watsonx.WatsonxChatModel;
+import dev.langchain4j.model.watsonx.WatsonxStreamingChatModel;
 import dev.langchain4j.service.AiServices;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.Startup;
@@ -42,7 +52,20 @@ import java.util.List;
 import java.util.Map;
 
 import org.chappiebot.rag.RagRequestContext;
+import org.chappiebot.routing.Bulkhead;
+import org.chappiebot.routing.BulkheadChatModel;
+import org.chappiebot.routing.BulkheadStreamingChatModel;
+import org.chappiebot.routing.PromptBudget;
+import org.chappiebot.routing.PromptBudgetChatModel;
+import org.chappiebot.routing.PromptBudgetStreamingChatModel;
+import org.chappiebot.routing.PromptCacheUsage;
+import org.chappiebot.routing.ProviderRoute;
+import org.chappiebot.routing.RoutingChatModel;
+import org.chappiebot.routing.RoutingStreamingChatModel;
+import org.chappiebot.store.JdbcChatMemoryStore;
 import org.chappiebot.store.StoreManager;
+import org.chappiebot.store.TokenEstimator;
+import org.chappiebot.store.TokenWindowJdbcChatMemory;
 
 /**
  * The Chappie Server
@@ -54,6 +77,20 @@ import org.chappiebot.store.StoreManager;
 public class ChappieService {
 
     private ChatModel chatModel;
+    private StreamingChatModel streamingChatModel;
+    private String modelName;
+    private ChatMemoryProvider memoryProvider;
+    private Function<String, ChatModel> modelLoader;
+    // Every provider (one, unless routing) with its bulkhead, to load other models of the same providers (for compaction)
+    private final List<ModelSource> modelSources = new java.util.ArrayList<>();
+    private ChatModel compactionModel;
+    private RoutingChatModel routingChatModel;
+    private final List<Bulkhead> bulkheads = new java.util.concurrent.CopyOnWriteArrayList<>();
+    private final PromptCacheUsage promptCacheUsage = new PromptCacheUsage();
+    private final AssistantRegistry assistantRegistry = new AssistantRegistry();
+    private final List<String> routedModelNames = new java.util.ArrayList<>();
+    private PromptBudget promptBudget;
+    private Map<String, Integer> contextLimits = Map.of();
 
     @ConfigProperty(name = "chappie.log.request", defaultValue = "true")
     boolean logRequest;
@@ -100,6 +137,10 @@ public class ChappieService {
 
     @ConfigProperty(name = "chappie.anthropic.model-name", defaultValue = "CLAUDE_3_5_SONNET_20240620")
     String anthropicModelName;
+
+    // Mark the system message (and tools) for Anthropic's prompt cache
+    @ConfigProperty(name = "chappie.anthropic.prompt-cache", defaultValue = "true")
+    boolean anthropicPromptCache;
     
     // Gemini
     @ConfigProperty(name = "chappie.gemini.api-key")
@@ -116,6 +157,56 @@ public class ChappieService {
     @ConfigProperty(name = "chappie.ollama.model-name", defaultValue = "codellama")
     String ollamaModelName;
 
+    // Routing
+
+    // Several providers, in order of preference, e.g. openai,anthropic. Requests fail over to the next one;
+    // streamed requests too, as long as nothing was streamed yet
+    // openai@<base-url> adds another OpenAI compatible server, with the same key and model name
+    @ConfigProperty(name = "chappie.routing.providers")
+    Optional<List<String>> routingProviders;
+
+    // Send a backup request to the next provider when one is slower than its p95 (not for streamed requests)
+    @ConfigProperty(name = "chappie.routing.hedging", defaultValue = "false")
+    boolean routingHedging;
+
+    @ConfigProperty(name = "chappie.routing.hedging.min-samples", defaultValue = "20")
+    int routingHedgingMinSamples;
+
+    @ConfigProperty(name = "chappie.routing.failure-threshold", defaultValue = "3")
+    int routingFailureThreshold;
+
+    @ConfigProperty(name = "chappie.routing.cooldown", defaultValue = "PT30S")
+    Duration routingCooldown;
+
+    // Bulkhead, per provider. 0 max in flight turns it off
+
+    @ConfigProperty(name = "chappie.bulkhead.max-in-flight", defaultValue = "20")
+    int bulkheadMaxInFlight;
+
+    // Calls waiting for a place; beyond that calls are rejected right away (503)
+    @ConfigProperty(name = "chappie.bulkhead.queue", defaultValue = "50")
+    int bulkheadQueue;
+
+    @ConfigProperty(name = "chappie.bulkhead.max-wait", defaultValue = "PT30S")
+    Duration bulkheadMaxWait;
+
+    // Prompt budget: requests are trimmed (or rejected) to fit the model's context window before they are sent
+
+    @ConfigProperty(name = "chappie.prompt.budget.enabled", defaultValue = "true")
+    boolean promptBudgetEnabled;
+
+    // Context windows in tokens by model name prefix (e.g. gpt-4o=128000), over the known ones
+    @ConfigProperty(name = "chappie.prompt.context-limits")
+    Optional<List<String>> promptContextLimits;
+
+    // For models that are not known or configured
+    @ConfigProperty(name = "chappie.prompt.context-limit.default", defaultValue = "32768")
+    int promptContextLimitDefault;
+
+    // Room kept for the answer
+    @ConfigProperty(name = "chappie.prompt.reserved-output-tokens", defaultValue = "4096")
+    int promptReservedOutputTokens;
+
     // RAG
 
     @Inject
@@ -126,6 +217,18 @@ public class ChappieService {
     @ConfigProperty(name = "chappie.store.messages.max", defaultValue = "30")
     int maxMessages;
 
+    // messages (chappie.store.messages.max) or tokens (chappie.store.tokens.max)
+    @ConfigProperty(name = "chappie.store.memory.window", defaultValue = "messages")
+    String memoryWindow;
+
+    @ConfigProperty(name = "chappie.store.tokens.max", defaultValue = "8000")
+    int maxTokens;
+
+    // Model (of the same provider, or of every routed one) used to compact long conversations; defaults to the chat model.
+    // It goes through the same routing, bulkheads and prompt budget as the chat model
+    @ConfigProperty(name = "chappie.store.compaction.model-name")
+    Optional<String> compactionModelName;
+
 
     @ConfigProperty(name = "quarkus.application.version")
     String appVersion;
@@ -143,6 +246,7 @@ public class ChappieService {
     private RetrievalAugmentor retrievalAugmentor;
     private final List<McpClient> mcpClients = new java.util.concurrent.CopyOnWriteArrayList<>();
     private McpToolProvider mcpToolProvider = null;
+    private final TokenEstimator tokenEstimator = new TokenEstimator();
 
     private final ChatRequestParameters chatRequestParameters = DefaultChatRequestParameters.builder()
             .toolChoice(ToolChoice.AUTO)
@@ -151,23 +255,162 @@ public class ChappieService {
 
     @PostConstruct
     public void init() {
-        if (openaiKey.isPresent() || openaiBaseUrl.isPresent()) {
-            loadOpenAiModel();
+        if (routingProviders.isPresent() && !routingProviders.get().isEmpty()) {
+            initRouting(routingProviders.get());
+        } else if (openaiKey.isPresent() || openaiBaseUrl.isPresent()) {
+            this.chatModel = loadOpenAiModel(openAiModelName);
+            this.streamingChatModel = loadOpenAiStreamingModel(openAiModelName);
+            this.modelName = openAiModelName;
+            this.modelLoader = this::loadOpenAiModel;
         } else if (anthropicKey.isPresent()){
-            loadAnthropicModel();
+            this.chatModel = loadAnthropicModel(anthropicModelName);
+            this.streamingChatModel = loadAnthropicStreamingModel(anthropicModelName);
+            this.modelName = anthropicModelName;
+            this.modelLoader = this::loadAnthropicModel;
         } else if (geminiKey.isPresent()){
-            loadGeminiModel();    
+            this.chatModel = loadGeminiModel(geminiModelName);
+            this.streamingChatModel = loadGeminiStreamingModel(geminiModelName);
+            this.modelName = geminiModelName;
+            this.modelLoader = this::loadGeminiModel;
         } else if (watsonxKey.isPresent() && (watsonxCloudRegion.isPresent() || watsonxBaseUrl.isPresent()) && watsonxProjectId.isPresent()){
-            loadWatsonXModel();
+            this.chatModel = loadWatsonXModel(watsonxModelName);
+            this.streamingChatModel = loadWatsonXStreamingModel(watsonxModelName);
+            this.modelName = watsonxModelName;
+            this.modelLoader = this::loadWatsonXModel;
         } else {
-            loadOllamaModel();
+            this.chatModel = loadOllamaModel(ollamaModelName);
+            this.streamingChatModel = loadOllamaStreamingModel(ollamaModelName);
+            this.modelName = ollamaModelName;
+            this.modelLoader = this::loadOllamaModel;
         }
+        if (routingChatModel == null) {
+            Bulkhead bulkhead = newBulkhead(modelName);
+            this.chatModel = withBulkhead(chatModel, bulkhead);
+            this.streamingChatModel = withBulkhead(streamingChatModel, bulkhead);
+            modelSources.add(new ModelSource(modelName, modelLoader, bulkhead));
+        }
+        enablePromptBudgetIfConfigured();
         enableRagIfPossible();
         enableMcpIfConfigured();
+        // Build the assistants now, not when they are first injected
+        getAssistant();
+        getStreamingAssistant();
+    }
+
+    /**
+     * Routes over all the configured providers, for chat and for streaming. The first one names the model
+     */
+    private void initRouting(List<String> providers) {
+        List<ProviderRoute> routes = new java.util.ArrayList<>();
+        for (String raw : providers) {
+            String spec = raw.trim();
+            int at = spec.indexOf('@');
+            String provider = (at < 0 ? spec : spec.substring(0, at)).toLowerCase();
+            Optional<String> baseUrl = at < 0 ? Optional.empty() : Optional.of(spec.substring(at + 1));
+            if (baseUrl.isPresent() && !provider.equals("openai")) {
+                Log.warnf("CHAPPiE routing: only openai takes a base url, skipping '%s'", spec);
+                continue;
+            }
+            Function<String, ChatModel> loader;
+            StreamingChatModel streamingModel;
+            String name;
+            switch (provider) {
+                case "openai" -> {
+                    loader = n -> loadOpenAiModel(n, baseUrl.or(() -> openaiBaseUrl));
+                    streamingModel = loadOpenAiStreamingModel(openAiModelName, baseUrl.or(() -> openaiBaseUrl));
+                    name = openAiModelName;
+                }
+                case "anthropic" -> {
+                    loader = this::loadAnthropicModel;
+                    streamingModel = loadAnthropicStreamingModel(anthropicModelName);
+                    name = anthropicModelName;
+                }
+                case "gemini" -> {
+                    loader = this::loadGeminiModel;
+                    streamingModel = loadGeminiStreamingModel(geminiModelName);
+                    name = geminiModelName;
+                }
+                case "watsonx" -> {
+                    loader = this::loadWatsonXModel;
+                    streamingModel = loadWatsonXStreamingModel(watsonxModelName);
+                    name = watsonxModelName;
+                }
+                case "ollama" -> {
+                    loader = this::loadOllamaModel;
+                    streamingModel = loadOllamaStreamingModel(ollamaModelName);
+                    name = ollamaModelName;
+                }
+                default -> {
+                    Log.warnf("CHAPPiE routing: unknown provider '%s' (use openai, anthropic, gemini, watsonx or ollama); skipping", spec);
+                    continue;
+                }
+            }
+            if (routes.isEmpty()) this.modelName = name;
+            Bulkhead bulkhead = newBulkhead(spec);
+            routes.add(new ProviderRoute(spec, withBulkhead(loader.apply(name), bulkhead), withBulkhead(streamingModel, bulkhead)));
+            modelSources.add(new ModelSource(spec, loader, bulkhead));
+            routedModelNames.add(name);
+        }
+        this.routingChatModel = new RoutingChatModel(routes, routingHedging, routingHedgingMinSamples, routingFailureThreshold, routingCooldown);
+        this.chatModel = routingChatModel;
+        this.streamingChatModel = new RoutingStreamingChatModel(routes, routingFailureThreshold, routingCooldown);
+        Log.infof("CHAPPiE is routing over %d provider(s)%s", routes.size(), routingHedging ? " with hedging" : "");
+    }
+
+    /**
+     * When routing, the smallest context window of the routed models is used, so a request fits wherever it goes
+     */
+    private void enablePromptBudgetIfConfigured() {
+        if (!promptBudgetEnabled) return;
+        Map<String, Integer> configured = new java.util.HashMap<>();
+        for (String limit : promptContextLimits.orElse(List.of())) {
+            int eq = limit.lastIndexOf('=');
+            try {
+                configured.put(limit.substring(0, eq).trim(), Integer.parseInt(limit.substring(eq + 1).trim()));
+            } catch (RuntimeException e) {
+                Log.warnf("CHAPPiE prompt budget: ignoring context limit '%s' (use model=tokens)", limit);
+            }
+        }
+        this.contextLimits = configured;
+        List<String> models = routedModelNames.isEmpty() ? List.of(modelName) : routedModelNames;
+        String model = models.get(0);
+        int contextLimit = Integer.MAX_VALUE;
+        for (String m : models) {
+            int limit = PromptBudget.contextLimit(m, configured, promptContextLimitDefault);
+            if (limit < contextLimit) {
+                contextLimit = limit;
+                model = m;
+            }
+        }
+        this.promptBudget = new PromptBudget(tokenEstimator, model, contextLimit, promptReservedOutputTokens);
+        this.chatModel = new PromptBudgetChatModel(chatModel, promptBudget);
+        this.streamingChatModel = new PromptBudgetStreamingChatModel(streamingChatModel, promptBudget);
+        Log.infof("CHAPPiE prompt budget: %d tokens for %s, %d of them kept for the answer", contextLimit, model, promptReservedOutputTokens);
+    }
+
+    /**
+     * The bulkhead of one provider, shared by its chat and streaming model; null when turned off
+     */
+    private Bulkhead newBulkhead(String name) {
+        if (bulkheadMaxInFlight <= 0) return null;
+        Bulkhead bulkhead = new Bulkhead(name, bulkheadMaxInFlight, Math.max(bulkheadQueue, 0), bulkheadMaxWait);
+        bulkheads.add(bulkhead);
+        return bulkhead;
+    }
+
+    private static ChatModel withBulkhead(ChatModel model, Bulkhead bulkhead) {
+        return bulkhead == null ? model : new BulkheadChatModel(model, bulkhead);
+    }
+
+    private static StreamingChatModel withBulkhead(StreamingChatModel model, Bulkhead bulkhead) {
+        return bulkhead == null ? model : new BulkheadStreamingChatModel(model, bulkhead);
     }
 
     @PreDestroy
     void shutdown() {
+        if (routingChatModel != null) {
+            routingChatModel.close();
+        }
         // Be nice and close transports/clients
         for (McpClient c : mcpClients) {
             try {
@@ -177,11 +420,15 @@ public class ChappieService {
         }
     }
 
-    private void loadOpenAiModel() {
+    private ChatModel loadOpenAiModel(String modelName) {
+        return loadOpenAiModel(modelName, openaiBaseUrl);
+    }
+
+    private ChatModel loadOpenAiModel(String modelName, Optional<String> openaiBaseUrl) {
 
         openaiBaseUrl.ifPresentOrElse(
-                burl -> Log.info("CHAPPiE is using OpenAI " + openAiModelName + " (" + burl + ")"),
-                () -> Log.info("CHAPPiE is using OpenAI " + openAiModelName)
+                burl -> Log.info("CHAPPiE is using OpenAI " + modelName + " (" + burl + ")"),
+                () -> Log.info("CHAPPiE is using OpenAI " + modelName)
         );
 
         Log.info("CHAPPiE timeout set to " + timeout);
@@ -193,10 +440,11 @@ public class ChappieService {
                 .logRequests(logRequest)
                 .logResponses(logResponse)
                 .apiKey(openaiKey.orElse("demo"))
-                .modelName(openAiModelName)
+                .modelName(modelName)
                 .timeout(timeout)
                 .temperature(temperature)
-                .responseFormat("json_object");
+                .responseFormat("json_object")
+                .listeners(List.of(promptCacheUsage));
 
         if (!mcpServers.isEmpty() && !mcpServers.get().isEmpty()) {
             builder = builder
@@ -208,11 +456,11 @@ public class ChappieService {
             builder = builder.baseUrl(openaiBaseUrl.get());
         }
 
-        this.chatModel = builder.build();
+        return builder.build();
     }
 
-    private void loadGeminiModel(){
-        Log.info("CHAPPiE is using Gemini " + geminiModelName);
+    private ChatModel loadGeminiModel(String modelName) {
+        Log.info("CHAPPiE is using Gemini " + modelName);
         Log.info("CHAPPiE timeout set to " + timeout);
         Log.info("CHAPPiE temperature set to " + temperature);
         
@@ -220,7 +468,7 @@ public class ChappieService {
                 .logRequests(logRequest)
                 .logResponses(logResponse)
                 .apiKey(geminiKey.get())
-                .modelName(geminiModelName)
+                .modelName(modelName)
                 .timeout(timeout)
                 .temperature(temperature)
                 .responseFormat(ResponseFormat.JSON);
@@ -230,11 +478,11 @@ public class ChappieService {
                     .defaultRequestParameters(chatRequestParameters);
         }
 
-        this.chatModel = builder.build();
+        return builder.build();
     }
     
-    private void loadAnthropicModel() {
-        Log.info("CHAPPiE is using Anthropic " + anthropicModelName);
+    private ChatModel loadAnthropicModel(String modelName) {
+        Log.info("CHAPPiE is using Anthropic " + modelName);
         Log.info("CHAPPiE timeout set to " + timeout);
         Log.info("CHAPPiE temperature set to " + temperature);
         
@@ -242,20 +490,23 @@ public class ChappieService {
                 .logRequests(logRequest)
                 .logResponses(logResponse)
                 .apiKey(anthropicKey.get())
-                .modelName(anthropicModelName)
+                .modelName(modelName)
                 .timeout(timeout)
-                .temperature(temperature);
+                .temperature(temperature)
+                .cacheSystemMessages(anthropicPromptCache)
+                .cacheTools(anthropicPromptCache)
+                .listeners(List.of(promptCacheUsage));
         
         if (!mcpServers.isEmpty() && !mcpServers.get().isEmpty()) {
             builder = builder
                     .defaultRequestParameters(chatRequestParameters);
         }
 
-        this.chatModel = builder.build();
+        return builder.build();
     }
     
-    private void loadWatsonXModel() {
-        Log.info("CHAPPiE is using WatsonX " + watsonxModelName + "(" + watsonxBaseUrl.orElse("") + ")");
+    private ChatModel loadWatsonXModel(String modelName) {
+        Log.info("CHAPPiE is using WatsonX " + modelName + "(" + watsonxBaseUrl.orElse("") + ")");
         Log.info("CHAPPiE timeout set to " + timeout);
         Log.info("CHAPPiE temperature set to " + temperature);
         
@@ -270,7 +521,7 @@ public class ChappieService {
         
         builder.logRequests(logRequest)
                 .logResponses(logResponse)
-                .modelName(watsonxModelName)
+                .modelName(modelName)
                 .projectId(watsonxProjectId.get())
                 .timeout(timeout)
                 .temperature(temperature)
@@ -280,11 +531,11 @@ public class ChappieService {
             builder = builder
                     .defaultRequestParameters(chatRequestParameters);
         }
-        this.chatModel = builder.build();
+        return builder.build();
     }
     
-    private void loadOllamaModel() {
-        Log.info("CHAPPiE is using Ollama " + ollamaModelName + "(" + ollamaBaseUrl + ")");
+    private ChatModel loadOllamaModel(String modelName) {
+        Log.info("CHAPPiE is using Ollama " + modelName + "(" + ollamaBaseUrl + ")");
         Log.info("CHAPPiE timeout set to " + timeout);
         Log.info("CHAPPiE temperature set to " + temperature);
 
@@ -292,7 +543,7 @@ public class ChappieService {
                 .logRequests(logRequest)
                 .logResponses(logResponse)
                 .baseUrl(ollamaBaseUrl)
-                .modelName(ollamaModelName)
+                .modelName(modelName)
                 .timeout(timeout)
                 .temperature(temperature)
                 .responseFormat(ResponseFormat.JSON);
@@ -302,23 +553,248 @@ public class ChappieService {
                     .defaultRequestParameters(chatRequestParameters);
         }
 
-        this.chatModel = builder.build();
+        return builder.build();
     }
 
-    @Produces
-    public Assistant getAssistant() {
+    private StreamingChatModel loadOpenAiStreamingModel(String modelName) {
+        return loadOpenAiStreamingModel(modelName, openaiBaseUrl);
+    }
+
+    private StreamingChatModel loadOpenAiStreamingModel(String modelName, Optional<String> openaiBaseUrl) {
+        OpenAiStreamingChatModel.OpenAiStreamingChatModelBuilder builder = OpenAiStreamingChatModel.builder()
+                .logRequests(logRequest)
+                .logResponses(logResponse)
+                .apiKey(openaiKey.orElse("demo"))
+                .modelName(modelName)
+                .timeout(timeout)
+                .temperature(temperature)
+                .responseFormat("json_object")
+                .listeners(List.of(promptCacheUsage));
+
+        if (!mcpServers.isEmpty() && !mcpServers.get().isEmpty()) {
+            builder = builder
+                    .defaultRequestParameters(chatRequestParameters)
+                    .parallelToolCalls(false);
+        }
+
+        if (openaiBaseUrl.isPresent()) {
+            builder = builder.baseUrl(openaiBaseUrl.get());
+        }
+
+        return builder.build();
+    }
+
+    private StreamingChatModel loadGeminiStreamingModel(String modelName) {
+        GoogleAiGeminiStreamingChatModel.GoogleAiGeminiStreamingChatModelBuilder builder = GoogleAiGeminiStreamingChatModel.builder()
+                .logRequests(logRequest)
+                .logResponses(logResponse)
+                .apiKey(geminiKey.get())
+                .modelName(modelName)
+                .timeout(timeout)
+                .temperature(temperature)
+                .responseFormat(ResponseFormat.JSON);
+
+        if (!mcpServers.isEmpty() && !mcpServers.get().isEmpty()) {
+            builder = builder
+                    .defaultRequestParameters(chatRequestParameters);
+        }
+
+        return builder.build();
+    }
+
+    private StreamingChatModel loadAnthropicStreamingModel(String modelName) {
+        AnthropicStreamingChatModel.AnthropicStreamingChatModelBuilder builder = AnthropicStreamingChatModel.builder()
+                .logRequests(logRequest)
+                .logResponses(logResponse)
+                .apiKey(anthropicKey.get())
+                .modelName(modelName)
+                .timeout(timeout)
+                .temperature(temperature)
+                .cacheSystemMessages(anthropicPromptCache)
+                .cacheTools(anthropicPromptCache)
+                .listeners(List.of(promptCacheUsage));
+
+        if (!mcpServers.isEmpty() && !mcpServers.get().isEmpty()) {
+            builder = builder
+                    .toolChoice(ToolChoice.AUTO);
+        }
 
-        AiServices<Assistant> assistantBuilder = AiServices.builder(Assistant.class)
-                .chatModel(chatModel)
-                .chatMemoryProvider(chatMemoryProvider());
+        return builder.build();
+    }
+
+    private StreamingChatModel loadWatsonXStreamingModel(String modelName) {
+        WatsonxStreamingChatModel.Builder builder;
+        if(watsonxCloudRegion.isPresent()){
+            builder = WatsonxStreamingChatModel.builder()
+                .baseUrl(CloudRegion.valueOf(watsonxCloudRegion.get()));
+        }else{
+            builder = WatsonxStreamingChatModel.builder()
+                .baseUrl(watsonxBaseUrl.get());
+        }
+
+        builder.logRequests(logRequest)
+                .logResponses(logResponse)
+                .modelName(modelName)
+                .projectId(watsonxProjectId.get())
+                .timeout(timeout)
+                .temperature(temperature)
+                .responseFormat(ResponseFormat.JSON);
+
+        if (!mcpServers.isEmpty() && !mcpServers.get().isEmpty()) {
+            builder = builder
+                    .defaultRequestParameters(chatRequestParameters);
+        }
+        return builder.build();
+    }
+
+    private StreamingChatModel loadOllamaStreamingModel(String modelName) {
+        OllamaStreamingChatModel.OllamaStreamingChatModelBuilder builder = OllamaStreamingChatModel.builder()
+                .logRequests(logRequest)
+                .logResponses(logResponse)
+                .baseUrl(ollamaBaseUrl)
+                .modelName(modelName)
+                .timeout(timeout)
+                .temperature(temperature)
+                .responseFormat(ResponseFormat.JSON);
+
+        if (!mcpServers.isEmpty() && !mcpServers.get().isEmpty()) {
+            builder = builder
+                    .defaultRequestParameters(chatRequestParameters);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * The health and latency of every provider, when routing over several
+     */
+    public Optional<List<ProviderRoute.Stats>> getRoutingStats() {
+        return Optional.ofNullable(routingChatModel).map(RoutingChatModel::stats);
+    }
+
+    /**
+     * In flight, queued and rejected calls per provider
+     */
+    public List<Bulkhead.Stats> getBulkheadStats() {
+        return bulkheads.stream().map(Bulkhead::stats).toList();
+    }
+
+    /**
+     * Requests that were trimmed or rejected to fit the context window
+     */
+    public Optional<PromptBudget.Stats> getPromptBudgetStats() {
+        return Optional.ofNullable(promptBudget).map(PromptBudget::stats);
+    }
+
+    /**
+     * Input tokens that were read from the providers' prompt caches
+     */
+    public List<PromptCacheUsage.Stats> getPromptCacheStats() {
+        return promptCacheUsage.stats();
+    }
 
-        if (retrievalAugmentor != null) {
-            assistantBuilder.retrievalAugmentor(retrievalAugmentor);
+    public String getModelName() {
+        return modelName;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * The chat memory the assistants use for this memoryId
+     */
+    public ChatMemory getChatMemory(String memoryId) {
+        // Not under the lock: getting the memory may read the store, and a virtual thread would pin its carrier
+        return memoryProvider().get(memoryId);
+    }
+
+    private synchronized ChatMemoryProvider memoryProvider() {
+        if (memoryProvider == null) {
+            memoryProvider = chatMemoryProvider();
         }
-        if (mcpToolProvider != null) {
-            assistantBuilder.toolProvider(mcpToolProvider);
+        return memoryProvider;
+    }
+
+    /**
+     * The model used to summarize conversations in the background
+     */
+    public synchronized ChatModel getCompactionModel() {
+        if (compactionModel == null) {
+            compactionModel = compactionModelName.map(this::loadCompactionModel).orElse(chatModel);
         }
-        return assistantBuilder.build();
+        return compactionModel;
+    }
+
+    /**
+     * The named model of every provider, behind the same routing, bulkheads and prompt budget as the chat model.
+     * Its routes keep their own health, as the model is a different one; it is not hedged, as nobody waits for it
+     */
+    private ChatModel loadCompactionModel(String name) {
+        List<ProviderRoute> routes = modelSources.stream()
+                .map(source -> new ProviderRoute(source.name(), withBulkhead(source.loader().apply(name), source.bulkhead())))
+                .toList();
+        ChatModel model = routingChatModel == null
+                ? routes.get(0).model()
+                : new RoutingChatModel(routes, false, routingHedgingMinSamples, routingFailureThreshold, routingCooldown);
+        if (promptBudget != null) {
+            int contextLimit = PromptBudget.contextLimit(name, contextLimits, promptContextLimitDefault);
+            model = new PromptBudgetChatModel(model, new PromptBudget(tokenEstimator, name, contextLimit, promptReservedOutputTokens));
+        }
+        return model;
+    }
+
+    private record ModelSource(String name, Function<String, ChatModel> loader, Bulkhead bulkhead) {}
+
+    /**
+     * The Assistant for the configured model, RAG and tools; built once
+     */
+    @Produces
+    public Assistant getAssistant() {
+        return assistantRegistry.get(Assistant.class, modelName, retrievalAugmentor != null, tools(), () -> {
+            AiServices<Assistant> assistantBuilder = AiServices.builder(Assistant.class)
+                    .chatModel(chatModel)
+                    .chatMemoryProvider(memoryProvider());
+
+            if (retrievalAugmentor != null) {
+                assistantBuilder.retrievalAugmentor(retrievalAugmentor);
+            }
+            if (mcpToolProvider != null) {
+                assistantBuilder.toolProvider(mcpToolProvider);
+            }
+            return assistantBuilder.build();
+        });
+    }
+
+    /**
+     * Same as the Assistant, but the answer is streamed as it is generated
+     */
+    @Produces
+    public StreamingAssistant getStreamingAssistant() {
+        return assistantRegistry.get(StreamingAssistant.class, modelName, retrievalAugmentor != null, tools(), () -> {
+            AiServices<StreamingAssistant> assistantBuilder = AiServices.builder(StreamingAssistant.class)
+                    .streamingChatModel(streamingChatModel)
+                    .chatMemoryProvider(memoryProvider());
+
+            if (retrievalAugmentor != null) {
+                assistantBuilder.retrievalAugmentor(retrievalAugmentor);
+            }
+            if (mcpToolProvider != null) {
+                assistantBuilder.toolProvider(mcpToolProvider);
+            }
+            return assistantBuilder.build();
+        });
+    }
+
+    /**
+     * What it took to build the assistants, and how often they were handed out
+     */
+    public List<AssistantRegistry.Stats> getAssistantStats() {
+        return assistantRegistry.stats();
+    }
+
+    private String tools() {
+        return mcpToolProvider == null ? "none" : "mcp" + mcpServers.orElse(List.of());
     }
 
     private void enableRagIfPossible() {
@@ -393,6 +869,16 @@ public class ChappieService {
         }
         mcpClients.addAll(clients);
 
+        // The client fetches (and caches) the tool list while holding its monitor. Do that now, rather than on the
+        // first request, where it would pin a virtual thread to its carrier for the duration of the call
+        for (McpClient client : clients) {
+            try {
+                client.listTools();
+            } catch (Exception e) {
+                Log.warnf("CHAPPiE MCP: could not list the tools of %s: %s", client.key(), e.getMessage());
+            }
+        }
+
         this.mcpToolProvider = McpToolProvider.builder()
                 .mcpClients(clients)
                 //.resourcesAsToolsPresenter(McpResourcesAsToolsPresenter.basic())
@@ -403,6 +889,17 @@ public class ChappieService {
 
 
     private ChatMemoryProvider chatMemoryProvider() {
+        if ("tokens".equalsIgnoreCase(memoryWindow)) {
+            Log.info("CHAPPiE Chat Memory is enabled with " + maxTokens + " max tokens");
+            Optional<JdbcChatMemoryStore> store = storeManager.getJdbcChatMemoryStore();
+            if (store.isPresent()) {
+                return memoryId -> new TokenWindowJdbcChatMemory(memoryId, maxTokens, store.get(), tokenEstimator);
+            }
+            return memoryId -> TokenWindowChatMemory.builder()
+                    .id(memoryId)
+                    .maxTokens(maxTokens, tokenEstimator)
+                    .build();
+        }
         Log.info("CHAPPiE Chat Memory is enabled with " + maxMessages + " max messages");
         return memoryId -> MessageWindowChatMemory.builder()
                 .id(memoryId)
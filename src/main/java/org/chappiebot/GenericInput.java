@@ -17,14 +17,9 @@ public record GenericInput(String programmingLanguage,
         return getMessage(systemmessageTemplate, variables);
     }
 
-    // TODO: There must be a Langchain4J way to do this ?    
-    private String getMessage(String result, Map<String, String> variables) {
-        if(variables!=null && !variables.isEmpty()){
-            for (Map.Entry<String, String> entry : variables.entrySet()) {
-                result = result.replace("{{" + entry.getKey() + "}}", entry.getValue());
-            }
-        }
-        return result;
+    private String getMessage(String template, Map<String, String> variables) {
+        if(template==null || variables==null || variables.isEmpty()) return template;
+        return MessageTemplate.of(template).render(variables);
     }
     
 }
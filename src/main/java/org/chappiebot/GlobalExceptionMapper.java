@@ -1,11 +1,14 @@
 package org.chappiebot;
 
 import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.ext.ExceptionMapper;
 import jakarta.ws.rs.ext.Provider;
 import jakarta.xml.bind.ValidationException;
 import java.util.Map;
+import org.chappiebot.routing.PromptTooLargeException;
+import org.chappiebot.routing.ProviderBusyException;
 import org.jboss.logging.Logger;
 
 @Provider
@@ -17,9 +20,33 @@ public class GlobalExceptionMapper implements ExceptionMapper<Throwable> {
     @Override
     public Response toResponse(Throwable exception) {
         
+        PromptTooLargeException tooLarge = findCause(exception, PromptTooLargeException.class);
+        if(tooLarge != null){
+            // Rejected before it was sent; the request needs to be smaller
+            LOG.warnf("Rejected request: %s", tooLarge.getMessage());
+            int status = Response.Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode();
+            return Response.status(status)
+                    .header(ERROR_HEADER, sanitizeHeaderValue(tooLarge.getMessage()))
+                    .entity(Map.of("status", status, "message", sanitizeHeaderValue(tooLarge.getMessage())))
+                    .build();
+        }
+        
+        ProviderBusyException busy = findCause(exception, ProviderBusyException.class);
+        if(busy != null){
+            // Load shedding; not an error of ours
+            LOG.warnf("Rejected request: %s", busy.getMessage());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header(ERROR_HEADER, sanitizeHeaderValue(busy.getMessage()))
+                    .header(HttpHeaders.RETRY_AFTER, Math.max(busy.getRetryAfter().toSeconds(), 1))
+                    .entity(Map.of("status", 503, "message", sanitizeHeaderValue(busy.getMessage())))
+                    .build();
+        }
+        
         int status = Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+        String retryAfter = null;
         if(exception instanceof WebApplicationException webApplicationException){
             status = webApplicationException.getResponse().getStatus();
+            retryAfter = webApplicationException.getResponse().getHeaderString(HttpHeaders.RETRY_AFTER);
         }else if(exception instanceof ValidationException) {
             status = Response.Status.BAD_REQUEST.getStatusCode();
         }
@@ -41,11 +68,20 @@ public class GlobalExceptionMapper implements ExceptionMapper<Throwable> {
         }
         return Response.status(status)
                 .header(ERROR_HEADER, headerValue)
+                .header(HttpHeaders.RETRY_AFTER, retryAfter)
                 .entity(Map.of("status", status, "message",headerValue))
                 .build();
         
     }
 
+    private static <T extends Throwable> T findCause(Throwable exception, Class<T> type) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (type.isInstance(t)) return type.cast(t);
+            if (t.getCause() == t) break;
+        }
+        return null;
+    }
+
     private static String sanitizeHeaderValue(String value) {
         if (value == null) return "";
         String cleaned = value.replaceAll("[\\r\\n]+", " ").trim();
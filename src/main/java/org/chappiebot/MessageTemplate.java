@@ -0,0 +1,85 @@
+package org.chappiebot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A message template with {{name}} placeholders, parsed once into literal and placeholder parts and rendered in one pass.
+ * A placeholder without a variable stays as it is. Values are inserted as they are (not searched for placeholders).
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public final class MessageTemplate {
+
+    // Templates come from the clients, so only so many are kept
+    private static final int MAX_CACHED = 512;
+    private static final Map<String, MessageTemplate> COMPILED = new ConcurrentHashMap<>();
+
+    private static final String OPEN = "{{";
+    private static final String CLOSE = "}}";
+
+    // Literal text at even indexes, placeholder names at odd indexes
+    private final String[] parts;
+    private final int literalLength;
+
+    private MessageTemplate(String[] parts, int literalLength) {
+        this.parts = parts;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * The compiled template, from the cache if it was compiled before
+     */
+    public static MessageTemplate of(String template) {
+        MessageTemplate compiled = COMPILED.get(template);
+        if (compiled == null) {
+            compiled = compile(template);
+            if (COMPILED.size() >= MAX_CACHED) COMPILED.clear();
+            COMPILED.put(template, compiled);
+        }
+        return compiled;
+    }
+
+    static MessageTemplate compile(String template) {
+        List<String> parts = new ArrayList<>();
+        int literalLength = 0;
+        int literalStart = 0;
+        int pos = 0;
+        int close;
+        while ((close = template.indexOf(CLOSE, pos)) >= 0) {
+            // The placeholder starts at the last {{ before the }}, as in "{{{name}}"
+            int open = template.lastIndexOf(OPEN, close - OPEN.length());
+            if (open < pos) {
+                pos = close + 1;
+                continue;
+            }
+            String literal = template.substring(literalStart, open);
+            parts.add(literal);
+            parts.add(template.substring(open + OPEN.length(), close));
+            literalLength += literal.length();
+            pos = close + CLOSE.length();
+            literalStart = pos;
+        }
+        String literal = template.substring(literalStart);
+        parts.add(literal);
+        literalLength += literal.length();
+        return new MessageTemplate(parts.toArray(String[]::new), literalLength);
+    }
+
+    public String render(Map<String, String> variables) {
+        if (parts.length == 1) return parts[0];
+        int length = literalLength;
+        String[] values = new String[parts.length];
+        for (int i = 1; i < parts.length; i += 2) {
+            String value = variables == null ? null : variables.get(parts[i]);
+            values[i] = value != null ? value : OPEN + parts[i] + CLOSE;
+            length += values[i].length();
+        }
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < parts.length; i++) {
+            sb.append(i % 2 == 0 ? parts[i] : values[i]);
+        }
+        return sb.toString();
+    }
+}
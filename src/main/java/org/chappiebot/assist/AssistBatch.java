@@ -0,0 +1,171 @@
+package org.chappiebot.assist;
+
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.quarkus.logging.Log;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.chappiebot.rag.RagRequestContext;
+import org.chappiebot.rag.SharedRetrieval;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Answers a list of independent assist requests, a few at a time, and reports each answer as soon as it is there.
+ * Every item is a new conversation. Items share their retrievals (see SharedRetrieval).
+ * All batches share one bounded pool of workers; only so many batches run at the same time, and more are rejected.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class AssistBatch {
+
+    @Inject
+    AssistService assistService;
+
+    @Inject
+    RagRequestContext ragRequestContext;
+
+    // How many items of one batch are answered at the same time
+    @ConfigProperty(name = "chappie.batch.parallelism", defaultValue = "4")
+    int parallelism;
+
+    @ConfigProperty(name = "chappie.batch.max-items", defaultValue = "100")
+    int maxItems;
+
+    // How many batches run at the same time; beyond that a batch is rejected (503)
+    @ConfigProperty(name = "chappie.batch.max-concurrent", defaultValue = "4")
+    int maxConcurrent;
+
+    // A retrieval another item is already running is waited for at most this long
+    @ConfigProperty(name = "chappie.timeout", defaultValue = "PT120S")
+    Duration timeout;
+
+    private ThreadPoolExecutor executor;
+    private Semaphore running;
+
+    @PostConstruct
+    void init() {
+        int batches = Math.max(maxConcurrent, 1);
+        running = new Semaphore(batches);
+        // A running batch has at most parallelism workers, so this never queues
+        int threads = batches * Math.max(parallelism, 1);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "chappie-assist-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    /**
+     * Starts the batch and returns. The listener is called from the batch threads, once per item and then once when all are done
+     * @return false, without calling the listener, when as many batches as allowed are already running
+     */
+    public boolean run(List<AssistInput> inputs, String cacheMode, Listener listener) {
+        Batch batch = new Batch(inputs, cacheMode, listener);
+        if (inputs.isEmpty()) {
+            listener.done(batch.summary());
+            return true;
+        }
+        if (!running.tryAcquire()) return false;
+        for (int i = 0; i < Math.min(Math.max(parallelism, 1), inputs.size()); i++) {
+            executor.execute(batch::work);
+        }
+        return true;
+    }
+
+    private class Batch {
+        final List<AssistInput> inputs;
+        final String cacheMode;
+        final Listener listener;
+        final SharedRetrieval sharedRetrieval = new SharedRetrieval(timeout);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining;
+        final AtomicInteger failed = new AtomicInteger();
+
+        Batch(List<AssistInput> inputs, String cacheMode, Listener listener) {
+            this.inputs = inputs;
+            this.cacheMode = cacheMode;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(inputs.size());
+        }
+
+        // Each worker takes the next item until there are none left
+        void work() {
+            for (int index = next.getAndIncrement(); index < inputs.size(); index = next.getAndIncrement()) {
+                try {
+                    if (listener.isCancelled()) {
+                        failed.incrementAndGet();
+                    } else {
+                        answer(index);
+                    }
+                } finally {
+                    // Whatever happened to the item, the batch has to end, or its place and the client are never let go
+                    if (remaining.decrementAndGet() == 0) {
+                        running.release();
+                        listener.done(summary());
+                    }
+                }
+            }
+        }
+
+        private void answer(int index) {
+            // The RAG variables are request scoped, so every item gets its own
+            ManagedContext requestContext = Arc.container().requestContext();
+            requestContext.activate();
+            try {
+                ragRequestContext.setSharedRetrieval(sharedRetrieval);
+                listener.answered(index, assistService.assist(inputs.get(index), null, cacheMode));
+            } catch (Throwable t) {
+                // Also errors, so the worker goes on with the next item
+                Log.warnf(t, "CHAPPiE batch item %d failed: %s", index, t.getMessage());
+                failed.incrementAndGet();
+                listener.failed(index, t);
+            } finally {
+                requestContext.terminate();
+            }
+        }
+
+        Summary summary() {
+            return new Summary(inputs.size(), failed.get(), sharedRetrieval.getShared());
+        }
+    }
+
+    public interface Listener {
+        void answered(int index, AssistService.Result result);
+
+        void failed(int index, Throwable failure);
+
+        void done(Summary summary);
+
+        /**
+         * Items that are not started yet are skipped once this is true
+         */
+        default boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * @param failed items that failed or were skipped
+     * @param sharedRetrievals retrievals answered by the retrieval of another item
+     */
+    public record Summary(int items, int failed, int sharedRetrievals) {}
+}
@@ -0,0 +1,28 @@
+package org.chappiebot.assist;
+
+import java.time.OffsetDateTime;
+import java.util.Map;
+
+/**
+ * The state of an assist request that is answered in the background
+ * @param memoryId the conversation; for a new conversation it is known once the job is done
+ * @param answer the same JSON /api/assist returns, once done
+ * @param error why it failed
+ */
+public record AssistJob(String id,
+                        Status status,
+                        String memoryId,
+                        OffsetDateTime submittedAt,
+                        OffsetDateTime startedAt,
+                        OffsetDateTime finishedAt,
+                        Map<String, Object> answer,
+                        String error) {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == DONE || this == FAILED || this == CANCELLED;
+        }
+    }
+}
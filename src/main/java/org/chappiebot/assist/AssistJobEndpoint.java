@@ -0,0 +1,83 @@
+package org.chappiebot.assist;
+
+import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.UriInfo;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Submit, poll and cancel assist requests that are answered in the background.
+ * Takes the same input and headers as /api/assist; the answer is in the job once it is done.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@Path("/api/assist/jobs")
+@Produces(MediaType.APPLICATION_JSON)
+public class AssistJobEndpoint {
+
+    @Inject
+    AssistJobs assistJobs;
+
+    /**
+     * Queues the request and answers 202 with the job and its location. When the queue is full, 503 with a Retry-After.
+     * With the X-Chappie-Webhook header (if webhooks are enabled), the finished job is posted to that URL.
+     */
+    @POST
+    public Response submit(AssistInput input,
+            @HeaderParam(HEADER_MEMORY_ID) String memoryId,
+            @HeaderParam(HEADER_CACHE) String cacheMode,
+            @HeaderParam(HEADER_WEBHOOK) String webhook,
+            @Context UriInfo uriInfo) {
+
+        AssistJob job = assistJobs.submit(input, memoryId, cacheMode, toWebhook(webhook))
+                .orElseThrow(() -> new ServiceUnavailableException("The assist job queue is full", RETRY_AFTER_SECONDS));
+        return Response.accepted(job)
+                .location(uriInfo.getAbsolutePathBuilder().path(job.id()).build())
+                .build();
+    }
+
+    @GET
+    @Path("/{id}")
+    public AssistJob get(@PathParam("id") String id) {
+        return assistJobs.get(id).orElseThrow(() -> new NotFoundException("No assist job " + id));
+    }
+
+    @DELETE
+    @Path("/{id}")
+    public AssistJob cancel(@PathParam("id") String id) {
+        return assistJobs.cancel(id).orElseThrow(() -> new NotFoundException("No assist job " + id));
+    }
+
+    private URI toWebhook(String webhook) {
+        if (webhook == null || webhook.isBlank()) return null;
+        if (!assistJobs.isWebhookEnabled()) {
+            throw new BadRequestException("Webhooks are not enabled (chappie.jobs.webhook.enabled)");
+        }
+        try {
+            URI uri = new URI(webhook.trim());
+            if (uri.getHost() == null || !("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()))) {
+                throw new BadRequestException("Invalid webhook " + webhook);
+            }
+            return uri;
+        } catch (URISyntaxException e) {
+            throw new BadRequestException("Invalid webhook " + webhook);
+        }
+    }
+
+    private static final long RETRY_AFTER_SECONDS = 5;
+    private static final String HEADER_MEMORY_ID = "X-Chappie-MemoryId";
+    private static final String HEADER_CACHE = "X-Chappie-Cache";
+    private static final String HEADER_WEBHOOK = "X-Chappie-Webhook";
+}
@@ -0,0 +1,229 @@
+package org.chappiebot.assist;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.quarkus.logging.Log;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Answers assist requests in the background, so clients submit and then poll (or get called back on a webhook)
+ * instead of holding a connection for the whole generation. Jobs run on their own pool of workers, with a bounded
+ * queue in front; finished jobs are kept for the TTL, and removed by a sweep that runs every so often.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class AssistJobs {
+
+    @Inject
+    AssistService assistService;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @ConfigProperty(name = "chappie.jobs.workers", defaultValue = "4")
+    int workers;
+
+    @ConfigProperty(name = "chappie.jobs.queue", defaultValue = "100")
+    int queueSize;
+
+    // How long finished jobs (and their answers) are kept
+    @ConfigProperty(name = "chappie.jobs.ttl", defaultValue = "PT1H")
+    Duration ttl;
+
+    // Off by default: the server would call any URL a client gives
+    @ConfigProperty(name = "chappie.jobs.webhook.enabled", defaultValue = "false")
+    boolean webhookEnabled;
+
+    @ConfigProperty(name = "chappie.jobs.webhook.timeout", defaultValue = "PT10S")
+    Duration webhookTimeout;
+
+    // Finished jobs are removed at most this long after their TTL
+    private static final Duration MAX_SWEEP_INTERVAL = Duration.ofMinutes(1);
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService sweeper;
+    private HttpClient httpClient;
+
+    @PostConstruct
+    void init() {
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(queueSize, 1)), r -> {
+            Thread t = new Thread(r, "chappie-assist-job");
+            t.setDaemon(true);
+            return t;
+        });
+        if (webhookEnabled) {
+            httpClient = HttpClient.newBuilder().connectTimeout(webhookTimeout).build();
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chappie-assist-job-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(Math.min(ttl.toMillis(), MAX_SWEEP_INTERVAL.toMillis()), 1);
+        sweeper.scheduleWithFixedDelay(this::expire, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) executor.shutdownNow();
+        if (sweeper != null) sweeper.shutdownNow();
+    }
+
+    public boolean isWebhookEnabled() {
+        return webhookEnabled;
+    }
+
+    /**
+     * @param webhook called with the job once it is finished, or null
+     * @return the queued job, or empty if the queue is full
+     */
+    public Optional<AssistJob> submit(AssistInput input, String memoryId, String cacheMode, URI webhook) {
+        Job job = new Job(UUID.randomUUID().toString(), memoryId, webhook, input, cacheMode);
+        // Published with its task, so a cancel always finds something to cancel
+        jobs.put(job.id, job);
+        try {
+            executor.execute(job.task);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            return Optional.empty();
+        }
+        return Optional.of(job.view());
+    }
+
+    public Optional<AssistJob> get(String id) {
+        return Optional.ofNullable(jobs.get(id)).map(Job::view);
+    }
+
+    /**
+     * Cancels the job if it is not finished yet. A queued job gives up its place in the queue right away;
+     * a running model call can not always be stopped, but its answer is dropped
+     */
+    public Optional<AssistJob> cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null) return Optional.empty();
+        synchronized (job) {
+            if (!job.status.isFinished()) {
+                job.status = AssistJob.Status.CANCELLED;
+                job.finishedAt = OffsetDateTime.now();
+                job.task.cancel(true);
+                executor.remove(job.task);
+            }
+        }
+        return Optional.of(job.view());
+    }
+
+    private void run(Job job, AssistInput input, String cacheMode) {
+        synchronized (job) {
+            if (job.status != AssistJob.Status.QUEUED) return;
+            job.status = AssistJob.Status.RUNNING;
+            job.startedAt = OffsetDateTime.now();
+        }
+        try {
+            AssistService.Result result = assist(input, job.memoryId, cacheMode);
+            finish(job, AssistJob.Status.DONE, result.memoryId(), result.answer(), null);
+        } catch (RuntimeException e) {
+            Log.warnf("CHAPPiE assist job %s failed: %s", job.id, e.getMessage());
+            finish(job, AssistJob.Status.FAILED, job.memoryId, null, e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+        if (job.webhook != null && httpClient != null) notify(job);
+    }
+
+    AssistService.Result assist(AssistInput input, String memoryId, String cacheMode) {
+        // The RAG variables are request scoped
+        ManagedContext requestContext = Arc.container().requestContext();
+        requestContext.activate();
+        try {
+            return assistService.assist(input, memoryId, cacheMode);
+        } finally {
+            requestContext.terminate();
+        }
+    }
+
+    private void finish(Job job, AssistJob.Status status, String memoryId, Map<String, Object> answer, String error) {
+        synchronized (job) {
+            if (job.status == AssistJob.Status.CANCELLED) return;
+            job.status = status;
+            job.memoryId = memoryId;
+            job.answer = answer;
+            job.error = error;
+            job.finishedAt = OffsetDateTime.now();
+        }
+    }
+
+    private void notify(Job job) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(job.webhook)
+                    .timeout(webhookTimeout)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(job.view())))
+                    .build();
+            httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, failure) -> {
+                        if (failure != null) {
+                            Log.warnf("CHAPPiE webhook for job %s failed: %s", job.id, failure.getMessage());
+                        } else if (response.statusCode() >= 300) {
+                            Log.warnf("CHAPPiE webhook for job %s answered %d", job.id, response.statusCode());
+                        }
+                    });
+        } catch (JsonProcessingException e) {
+            Log.warnf("CHAPPiE webhook for job %s not sent: %s", job.id, e.getMessage());
+        }
+    }
+
+    private void expire() {
+        OffsetDateTime before = OffsetDateTime.now().minus(ttl);
+        jobs.values().removeIf(job -> {
+            OffsetDateTime finishedAt = job.finishedAt;
+            return finishedAt != null && finishedAt.isBefore(before);
+        });
+    }
+
+    private class Job {
+        final String id;
+        final URI webhook;
+        final OffsetDateTime submittedAt = OffsetDateTime.now();
+        volatile AssistJob.Status status = AssistJob.Status.QUEUED;
+        volatile String memoryId;
+        volatile OffsetDateTime startedAt;
+        volatile OffsetDateTime finishedAt;
+        volatile Map<String, Object> answer;
+        volatile String error;
+        // Lets go of the input once it has run
+        final FutureTask<Void> task;
+
+        Job(String id, String memoryId, URI webhook, AssistInput input, String cacheMode) {
+            this.id = id;
+            this.memoryId = memoryId;
+            this.webhook = webhook;
+            this.task = new FutureTask<>(() -> run(this, input, cacheMode), null);
+        }
+
+        synchronized AssistJob view() {
+            return new AssistJob(id, status, memoryId, submittedAt, startedAt, finishedAt, answer, error);
+        }
+    }
+}
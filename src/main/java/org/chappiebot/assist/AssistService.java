@@ -0,0 +1,146 @@
+package org.chappiebot.assist;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.memory.ChatMemory;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.chappiebot.ChappieService;
+import org.chappiebot.rag.RagRequestContext;
+import org.chappiebot.store.ConversationCompactor;
+import org.chappiebot.store.StoreManager;
+
+/**
+ * Answers one assist request: from the response caches, by sharing the call of an identical request in flight,
+ * or by asking the Assistant. Used by the assist endpoint, and by anything that answers assist requests off the
+ * HTTP request (jobs).
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class AssistService {
+
+    // Cache modes: bypass skips the response caches, use uses them for an ongoing conversation
+    static final String CACHE_BYPASS = "bypass";
+    static final String CACHE_USE = "use";
+
+    private static final String NICE_NAME = "niceName";
+
+    @Inject
+    Assistant dynamicAssistant;
+
+    @Inject
+    ChappieService chappieService;
+
+    @Inject
+    ResponseCache responseCache;
+
+    @Inject
+    SemanticCache semanticCache;
+
+    @Inject
+    RequestCoalescer requestCoalescer;
+
+    @Inject
+    SystemPrompts systemPrompts;
+
+    @Inject
+    RagRequestContext ragRequestContext;
+
+    @Inject
+    StoreManager storeManager;
+
+    @Inject
+    ConversationCompactor conversationCompactor;
+
+    /**
+     * Needs an active request context (for the RAG variables)
+     * @param memoryId the conversation to continue, or null (or blank) for a new one
+     * @param cacheMode bypass, use, or null
+     */
+    public Result assist(AssistInput input, String memoryId, String cacheMode) {
+        boolean newConversation = memoryId==null || memoryId.isBlank();
+        if(newConversation){
+            memoryId = UUID.randomUUID().toString();
+        }
+    
+        ragRequestContext.setVariables(input.genericInput().variables());
+        
+        String responseSchema = input.responseSchemaPrompt() == null ? "" : input.responseSchemaPrompt();
+        
+        // Only answers that do not depend on earlier messages are cached, unless the client asks for it
+        boolean cacheRequested = !CACHE_BYPASS.equalsIgnoreCase(cacheMode)
+                && (newConversation || CACHE_USE.equalsIgnoreCase(cacheMode));
+        String cacheKey = cacheRequested && responseCache.isEnabled() ? responseCache.key(input.genericInput(), responseSchema) : null;
+        ResponseCache.Entry cached = cacheKey == null ? null : responseCache.get(cacheKey);
+        
+        // Not asked before in exactly these words; maybe in others
+        String userMessage = input.genericInput().getUserMessage();
+        String scope = null;
+        float[] vector = null;
+        SemanticCache.Hit similar = null;
+        if(cached == null && cacheRequested && semanticCache.isEnabled()){
+            vector = semanticCache.embed(userMessage);
+            if(vector != null){
+                scope = semanticCache.scope(input.genericInput(), responseSchema);
+                similar = semanticCache.get(scope, vector, userMessage);
+            }
+        }
+        
+        Map<String,Object> r;
+        boolean shared = false;
+        if(cached != null){
+            ChatMemory memory = chappieService.getChatMemory(memoryId);
+            cached.exchange().forEach(memory::add);
+            r = cached.answer();
+        }else if(similar != null){
+            ChatMemory memory = chappieService.getChatMemory(memoryId);
+            similar.exchange().forEach(memory::add);
+            r = similar.answer();
+        }else{
+            // Identical new requests that arrive together share one call to the model
+            String flightKey = newConversation && !CACHE_BYPASS.equalsIgnoreCase(cacheMode)
+                    ? (cacheKey != null ? cacheKey : responseCache.key(input.genericInput(), responseSchema))
+                    : null;
+            boolean keepExchange = flightKey != null || cacheKey != null || vector != null;
+            String leaderMemoryId = memoryId;
+            RequestCoalescer.Flight flight = requestCoalescer.run(flightKey, () -> {
+                Map<String,Object> answer = dynamicAssistant.assist(systemPrompts.render(input.genericInput(), responseSchema),
+                        userMessage,
+                        leaderMemoryId);
+                List<ChatMessage> memory = keepExchange ? chappieService.getChatMemory(leaderMemoryId).messages() : List.of();
+                return RequestCoalescer.answer(answer, memory);
+            });
+            r = flight.answer().answer();
+            shared = flight.shared();
+            if(shared){
+                ChatMemory memory = chappieService.getChatMemory(memoryId);
+                flight.answer().exchange().forEach(memory::add);
+            }else{
+                List<ChatMessage> exchange = flight.answer().exchange();
+                if(cacheKey != null) responseCache.put(cacheKey, r, exchange);
+                if(vector != null) semanticCache.put(scope, vector, r, exchange);
+            }
+        }
+        
+        if(r.containsKey(NICE_NAME)){
+            String niceName = String.valueOf(r.get(NICE_NAME));
+            if(storeManager.getJdbcChatMemoryStore().isPresent() && niceName!=null && !niceName.isBlank()){
+                storeManager.getJdbcChatMemoryStore().get().setNiceName(memoryId, niceName);
+            }
+        }
+        
+        conversationCompactor.compactLater(memoryId);
+
+        String cacheStatus = (cacheKey != null || scope != null || shared)
+                ? (cached != null ? "hit" : similar != null ? "similar" : shared ? "shared" : "miss")
+                : null;
+        return new Result(memoryId, r, cacheStatus);
+    }
+
+    /**
+     * @param cacheStatus hit, similar, shared (with an identical request in flight) or miss; null if no cache was used
+     */
+    public record Result(String memoryId, Map<String, Object> answer, String cacheStatus) {}
+}
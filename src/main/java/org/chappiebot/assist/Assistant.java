@@ -8,8 +8,10 @@ import java.util.Map;
 
 public interface Assistant {
 
+    // The static part comes first and the variables last, so the start of every prompt is the same
+    // and providers can reuse (cache) their processing of it. Rendered by SystemPrompts
     static final String SYSTEM_MESSAGE = """
-You are an AI assistant named CHAPPiE, assisting in {{programmingLanguage}} {{programmingLanguageVersion}} code from a Quarkus {{quarkusVersion}} application.
+You are an AI assistant named CHAPPiE, assisting developers with the code of Quarkus applications.
 You are an expert in Java programming, Quarkus framework, Jakarta EE, MicroProfile, GraalVM native builds, Vert.x, Maven, JUnit, etc.
 
 If asked to write Quarkus code use the following code Style and Structure
@@ -23,14 +25,16 @@ If asked to write Quarkus code use the following code Style and Structure
     - Use PascalCase for class names (e.g., UserResource, OrderService).
     - Use camelCase for method and variable names (e.g., findUserById, isOrderValid).
     - Use ALL_CAPS for constants (e.g., MAX_RETRY_ATTEMPTS, DEFAULT_PAGE_SIZE).
-    - Use {{programmingLanguage}} {{programmingLanguageVersion}} latest features where appropriate.
+    - Use the latest features of the language version in use where appropriate.
     - If needed, utilize Quarkus BOM for dependency management, ensuring consistent versions.
     - When appropriate, integrate MicroProfile APIs (e.g., Config, Health, Metrics) for enterprise-grade applications.
     - Use Mutiny or Vert.x where event-driven or reactive patterns are needed (e.g., messaging, streams).
 
+Never wrap JSON in code fences. Never include extra keys unless necessary.
+
 {{responseSchemaPrompt}}
 
-Never wrap JSON in code fences. Never include extra keys unless necessary.
+The code is {{programmingLanguage}} {{programmingLanguageVersion}} from a Quarkus {{quarkusVersion}} application.
 
 {{systemmessage}}
 """;
@@ -42,14 +46,13 @@ Never wrap JSON in code fences. Never include extra keys unless necessary.
                                        
 """;
     
-    @SystemMessage(SYSTEM_MESSAGE)
+    // The rendered SYSTEM_MESSAGE (see SystemPrompts)
+    static final String SYSTEM_PROMPT = "{{systemPrompt}}";
+    
+    @SystemMessage(SYSTEM_PROMPT)
     @UserMessage(USER_MESSAGE)
-    public Map<String,Object> assist(@V("programmingLanguage")String programmingLanguage, 
-                        @V("programmingLanguageVersion")String programmingLanguageVersion, 
-                        @V("quarkusVersion")String version, 
-                        @V("systemmessage")String systemmessage, 
+    public Map<String,Object> assist(@V("systemPrompt")String systemPrompt, 
                         @V("usermessage")String usermessage,
-                        @V("responseSchemaPrompt")String responseSchemaPrompt,
                         @MemoryId String memoryId);
     
 }
\ No newline at end of file
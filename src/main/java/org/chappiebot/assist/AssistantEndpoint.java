@@ -1,13 +1,31 @@
 package org.chappiebot.assist;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.exception.UnsupportedFeatureException;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import dev.langchain4j.service.TokenStream;
+import io.quarkus.logging.Log;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.GET;
 import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import org.chappiebot.rag.RagRequestContext;
+import org.chappiebot.routing.ProviderBusyException;
+import org.chappiebot.store.ConversationCompactor;
 import org.chappiebot.store.StoreManager;
 
 /**
@@ -18,7 +36,22 @@ import org.chappiebot.store.StoreManager;
 public class AssistantEndpoint {
     
     @Inject
-    Assistant dynamicAssistant;
+    AssistService assistService;
+    
+    @Inject
+    StreamingAssistant streamingAssistant;
+    
+    @Inject
+    ObjectMapper objectMapper;
+    
+    @Inject
+    AssistBatch assistBatch;
+    
+    @Inject
+    SystemPrompts systemPrompts;
+    
+    @Inject
+    SemanticCache semanticCache;
     
     @Inject 
     RagRequestContext ragRequestContext;
@@ -26,40 +59,250 @@ public class AssistantEndpoint {
     @Inject
     StoreManager storeManager;
     
+    @Inject
+    ConversationCompactor conversationCompactor;
+    
+    /**
+     * On Java 21+ this runs on a virtual thread, so a request that waits for the model (up to the timeout) does not
+     * hold a worker thread. The build targets Java 17, where there are no virtual threads: there the annotation does
+     * nothing and this runs on a worker thread, as before. AssistLoadTest shows the difference.
+     */
     @POST
+    @RunOnVirtualThread
     public Response assist(AssistInput input,
-            @HeaderParam(HEADER_MEMORY_ID) String memoryId) {
+            @HeaderParam(HEADER_MEMORY_ID) String memoryId,
+            @HeaderParam(HEADER_CACHE) String cacheMode) {
         
-            if(memoryId==null || memoryId.isBlank()){
-                memoryId = UUID.randomUUID().toString();
+            AssistService.Result result = assistService.assist(input, memoryId, cacheMode);
+            
+            Response.ResponseBuilder response = Response
+                    .ok(result.answer())
+                    .header(HEADER_MEMORY_ID, result.memoryId());
+            if(result.cacheStatus() != null){
+                response.header(HEADER_CACHE, result.cacheStatus());
             }
+            return response.build();
+    }
+    
+    /**
+     * How well the semantic cache is doing: hits, near misses and the similarity of the hits
+     */
+    @GET
+    @Path("/cache/semantic")
+    @Produces(MediaType.APPLICATION_JSON)
+    public SemanticCache.Stats semanticCacheStats() {
+        return semanticCache.stats();
+    }
+    
+    /**
+     * Streams the answer as Server-Sent Events while it is generated:
+     * a memoryId event first, then token events with the raw (partial JSON) text, and finally an answer event with
+     * the complete answer (the same JSON /api/assist returns), or an error event.
+     * Chat memory is stored once the answer is complete. If the client goes away, the generation is cancelled.
+     * When routing over several providers, a provider that fails before the first token is replaced by the next one
+     * (there is no hedging for streams); an error after that ends the stream with an error event.
+     * When the provider is busy the response is a 503 with Retry-After, as for /api/assist.
+     */
+    @POST
+    @Path("/stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void assistStreaming(AssistInput input,
+            @HeaderParam(HEADER_MEMORY_ID) String memoryIdHeader,
+            @Context SseEventSink sink,
+            @Context Sse sse) {
+        
+            String memoryId = (memoryIdHeader==null || memoryIdHeader.isBlank()) ? UUID.randomUUID().toString() : memoryIdHeader;
         
             ragRequestContext.setVariables(input.genericInput().variables());
             
-            String responseSchema = input.responseSchemaPrompt();
-            if(responseSchema == null)responseSchema ="";
-            
-            Map<String,Object> r = dynamicAssistant.assist(input.genericInput().programmingLanguage(),
-                        input.genericInput().programmingLanguageVersion(),
-                        input.genericInput().quarkusVersion(),
-                        input.genericInput().getSystemMessage(), 
+            TokenStream tokenStream;
+            try {
+                tokenStream = streamingAssistant.assist(systemPrompts.render(input.genericInput(), input.responseSchemaPrompt()),
                         input.genericInput().getUserMessage(),
-                        responseSchema,
                         memoryId);
+            } catch (RuntimeException e) {
+                sink.send(sse.newEventBuilder().name(EVENT_MEMORY_ID).data(memoryId).build());
+                sendErrorAndClose(sink, sse, e);
+                return;
+            }
             
-            if(r.containsKey(NICE_NAME)){
-                String niceName = String.valueOf(r.get(NICE_NAME));
-                if(storeManager.getJdbcChatMemoryStore().isPresent() && niceName!=null && !niceName.isBlank()){
-                    storeManager.getJdbcChatMemoryStore().get().setNiceName(memoryId, niceName);
+            // The memoryId goes first, whichever comes first: the first token or the stream having started
+            Runnable announce = new Runnable() {
+                private boolean sent;
+
+                @Override
+                public synchronized void run() {
+                    if (sent) return;
+                    sent = true;
+                    sink.send(sse.newEventBuilder().name(EVENT_MEMORY_ID).data(memoryId).build());
                 }
+            };
+            
+            tokenStream
+                .onPartialResponseWithContext((partial, context) -> {
+                    if (sink.isClosed()) {
+                        cancel(context.streamingHandle());
+                        return;
+                    }
+                    announce.run();
+                    sink.send(sse.newEventBuilder().name(EVENT_TOKEN).data(partial.text()).build())
+                        .whenComplete((ignored, failure) -> {
+                            if (failure != null) cancel(context.streamingHandle());
+                        });
+                })
+                .onCompleteResponse(response -> {
+                    Map<String,Object> r = parseAnswer(response.aiMessage().text());
+                    if(r.containsKey(NICE_NAME)){
+                        String niceName = String.valueOf(r.get(NICE_NAME));
+                        if(storeManager.getJdbcChatMemoryStore().isPresent() && niceName!=null && !niceName.isBlank()){
+                            storeManager.getJdbcChatMemoryStore().get().setNiceName(memoryId, niceName);
+                        }
+                    }
+                    conversationCompactor.compactLater(memoryId);
+                    
+                    if (!sink.isClosed()) {
+                        announce.run();
+                        sink.send(sse.newEventBuilder()
+                                .name(EVENT_ANSWER)
+                                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                                .data(Map.class, r)
+                                .build())
+                            .whenComplete((ignored, failure) -> sink.close());
+                    }
+                })
+                .onError(t -> {
+                    announce.run();
+                    sendErrorAndClose(sink, sse, t);
+                });
+            
+            try {
+                tokenStream.start();
+            } catch (ProviderBusyException e) {
+                // Nothing is sent yet, so this is still a 503 with Retry-After
+                throw e;
+            } catch (RuntimeException e) {
+                announce.run();
+                sendErrorAndClose(sink, sse, e);
+                return;
+            }
+            announce.run();
+    }
+    
+    /**
+     * Answers a list of independent requests (each a new conversation), a few at a time as the server decides,
+     * and streams each answer as Server-Sent Events as soon as it is there: an answer event per item with its index,
+     * memoryId and answer (or an error event with its index and message), and a done event when all are answered.
+     * If the client goes away, the items that are not started yet are skipped.
+     * Items with the same extension and the same prompt share one retrieval; items with different prompts (one per
+     * changed file, say) each retrieve for themselves, so the summary's sharedRetrievals is 0 for those.
+     * When too many batches are running already, the response is a 503 with Retry-After.
+     */
+    @POST
+    @Path("/batch")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void assistBatch(List<AssistInput> inputs,
+            @HeaderParam(HEADER_CACHE) String cacheMode,
+            @Context SseEventSink sink,
+            @Context Sse sse) {
+        
+            if(inputs == null || inputs.isEmpty()){
+                throw new BadRequestException("Nothing to assist with");
+            }
+            if(inputs.size() > assistBatch.getMaxItems()){
+                throw new BadRequestException("Too many items in the batch (max " + assistBatch.getMaxItems() + ")");
             }
             
-            return Response
-                    .ok(r)
-                    .header(HEADER_MEMORY_ID, memoryId)
-                    .build();
+            boolean started = assistBatch.run(inputs, cacheMode, new AssistBatch.Listener() {
+                @Override
+                public void answered(int index, AssistService.Result result) {
+                    send(EVENT_ANSWER, Map.of("index", index, "memoryId", result.memoryId(), "answer", result.answer()));
+                }
+
+                @Override
+                public void failed(int index, Throwable failure) {
+                    String message = failure.getMessage() == null ? failure.getClass().getSimpleName() : failure.getMessage();
+                    send(EVENT_ERROR, Map.of("index", index, "message", message));
+                }
+
+                @Override
+                public void done(AssistBatch.Summary summary) {
+                    synchronized (sink) {
+                        if (sink.isClosed()) return;
+                        sink.send(sse.newEventBuilder()
+                                .name(EVENT_DONE)
+                                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                                .data(AssistBatch.Summary.class, summary)
+                                .build())
+                            .whenComplete((ignored, failure) -> sink.close());
+                    }
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return sink.isClosed();
+                }
+
+                // Items finish on different threads
+                private void send(String name, Map<String,Object> data) {
+                    synchronized (sink) {
+                        if (sink.isClosed()) return;
+                        sink.send(sse.newEventBuilder()
+                                .name(name)
+                                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                                .data(Map.class, data)
+                                .build());
+                    }
+                }
+            });
+            if (!started) {
+                throw new ServiceUnavailableException("Too many batches are running", RETRY_AFTER_SECONDS);
+            }
+    }
+    
+    private static void cancel(StreamingHandle handle) {
+        if (handle.isCancelled()) return;
+        try {
+            handle.cancel();
+        } catch (UnsupportedFeatureException e) {
+            // This provider can not stop a running generation; the rest of the tokens are just not sent
+        }
+    }
+    
+    private static void sendErrorAndClose(SseEventSink sink, Sse sse, Throwable t) {
+        Log.warn("CHAPPiE streaming assist failed: " + t.getMessage());
+        if (sink.isClosed()) return;
+        String message = t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage();
+        sink.send(sse.newEventBuilder().name(EVENT_ERROR).data(message).build())
+            .whenComplete((ignored, failure) -> sink.close());
+    }
+    
+    /**
+     * The complete streamed text as the answer map. Models sometimes wrap the JSON in text or code fences,
+     * so the outermost object is used. Text without any JSON is returned as the answer.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String,Object> parseAnswer(String text) {
+        if (text == null) return Map.of();
+        int start = text.indexOf('{');
+        int end = text.lastIndexOf('}');
+        if (start >= 0 && end > start) {
+            try {
+                return objectMapper.readValue(text.substring(start, end + 1), Map.class);
+            } catch (IOException e) {
+                // Fall through
+            }
+        }
+        return Map.of("answer", text);
     }
     
+    private static final String EVENT_MEMORY_ID = "memoryId";
+    private static final String EVENT_TOKEN = "token";
+    private static final String EVENT_ANSWER = "answer";
+    private static final String EVENT_ERROR = "error";
+    private static final String EVENT_DONE = "done";
     private static final String NICE_NAME = "niceName";
     private static final String HEADER_MEMORY_ID = "X-Chappie-MemoryId";
+    // Request: bypass or use (see AssistService). Response: hit, similar, shared or miss
+    private static final String HEADER_CACHE = "X-Chappie-Cache";
+    private static final long RETRY_AFTER_SECONDS = 5;
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+package org.chappiebot.assist;
+
+import dev.langchain4j.data.message.ChatMessage;
+import io.quarkus.logging.Log;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Lets identical requests that arrive while the first one is still being answered share that answer
+ * (single flight). Only one call goes to the model; the others wait for it and get the same answer, or the same error.
+ * A request waits for at most the model timeout; after that it makes its own call.
+ * Nothing is kept once the call is done, so unlike the ResponseCache an answer can never be stale.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class RequestCoalescer {
+
+    @ConfigProperty(name = "chappie.timeout", defaultValue = "PT120S")
+    Duration timeout;
+
+    private final Map<String, CompletableFuture<Answer>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param key the request key, or null to not coalesce
+     * @param call answers the request, with the memory right after the answer
+     */
+    public Flight run(String key, Supplier<Answer> call) {
+        if (key == null) return new Flight(call.get(), false);
+
+        CompletableFuture<Answer> mine = new CompletableFuture<>();
+        CompletableFuture<Answer> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            Log.debugf("CHAPPiE request %s is already in flight; waiting for it", key);
+            try {
+                return new Flight(leader.get(timeout.toMillis(), TimeUnit.MILLISECONDS), true);
+            } catch (TimeoutException e) {
+                coalesced.decrementAndGet();
+                Log.debugf("CHAPPiE request %s is still in flight after %s; making its own call", key, timeout);
+                return new Flight(call.get(), false);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                if (e.getCause() instanceof Error error) throw error;
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for request " + key, e);
+            }
+        }
+        try {
+            Answer answer = call.get();
+            mine.complete(answer);
+            return new Flight(answer, false);
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return the number of requests that shared the answer of another one
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @param memory the chat memory right after the answer; the system message and the last exchange are shared
+     */
+    public static Answer answer(Map<String, Object> answer, List<ChatMessage> memory) {
+        return new Answer(Collections.unmodifiableMap(new LinkedHashMap<>(answer)), ResponseCache.lastExchange(memory));
+    }
+
+    public record Answer(Map<String, Object> answer, List<ChatMessage> exchange) {}
+
+    /**
+     * @param shared true when this is the answer of another request, so its exchange still has to be added to this memory
+     */
+    public record Flight(Answer answer, boolean shared) {}
+}
@@ -0,0 +1,127 @@
+package org.chappiebot.assist;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.quarkus.logging.Log;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.chappiebot.ChappieService;
+import org.chappiebot.GenericInput;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Remembers answers to requests that are sent again with exactly the same input (same prompts, schema, model and temperature),
+ * so those are answered without calling the model. Least recently used answers are evicted beyond the max size,
+ * and answers expire after the TTL.
+ * Together with the answer, the exchange as it was added to chat memory is kept, so a cached answer is remembered just the same.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class ResponseCache {
+
+    @Inject
+    ChappieService chappieService;
+
+    @ConfigProperty(name = "chappie.cache.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "chappie.cache.max-size", defaultValue = "1000")
+    int maxSize;
+
+    @ConfigProperty(name = "chappie.cache.ttl", defaultValue = "PT1H")
+    Duration ttl;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    public boolean isEnabled() {
+        return enabled && maxSize > 0;
+    }
+
+    public String key(GenericInput input, String responseSchema) {
+        StringBuilder sb = new StringBuilder();
+        // The prompts are rendered from these, with fixed templates
+        append(sb, input.programmingLanguage());
+        append(sb, input.programmingLanguageVersion());
+        append(sb, input.quarkusVersion());
+        append(sb, input.getSystemMessage());
+        append(sb, input.getUserMessage());
+        append(sb, responseSchema);
+        // The variables also narrow the RAG search
+        if (input.variables() != null) append(sb, new TreeMap<>(input.variables()).toString());
+        append(sb, chappieService.getModelName());
+        append(sb, String.valueOf(chappieService.getTemperature()));
+        return sha256(sb.toString());
+    }
+
+    public Entry get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) return null;
+            if (System.nanoTime() - entry.createdAt() > ttl.toNanos()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * @param memory the chat memory right after the answer; the system message and the last exchange are kept
+     */
+    public void put(String key, Map<String, Object> answer, List<ChatMessage> memory) {
+        Entry entry = new Entry(Collections.unmodifiableMap(new LinkedHashMap<>(answer)), lastExchange(memory), System.nanoTime());
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        Log.debugf("CHAPPiE response cache: stored %s", key);
+    }
+
+    static List<ChatMessage> lastExchange(List<ChatMessage> memory) {
+        int lastUser = -1;
+        for (int i = memory.size() - 1; i >= 0; i--) {
+            if (memory.get(i) instanceof UserMessage) {
+                lastUser = i;
+                break;
+            }
+        }
+        List<ChatMessage> out = new ArrayList<>();
+        for (int i = 0; i < memory.size(); i++) {
+            if (memory.get(i) instanceof SystemMessage || (lastUser >= 0 && i >= lastUser)) out.add(memory.get(i));
+        }
+        return List.copyOf(out);
+    }
+
+    private static void append(StringBuilder sb, String value) {
+        // Length prefixed, so values can not run into each other
+        String v = value == null ? "" : value;
+        sb.append(v.length()).append(':').append(v).append('|');
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public record Entry(Map<String, Object> answer, List<ChatMessage> exchange, long createdAt) {}
+}
@@ -0,0 +1,222 @@
+package org.chappiebot.assist;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.quarkus.logging.Log;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import org.chappiebot.GenericInput;
+import org.chappiebot.rag.RetrievalProvider;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Answers requests that mean the same as an earlier one, even when worded differently.
+ * The user prompt is embedded with the RAG embedding model and compared (cosine similarity) with the prompts of
+ * earlier answers in the same scope: everything else that goes into the prompt (language, versions, system message,
+ * schema, variables) and the model must be the same. Above the threshold the earlier answer is used.
+ *
+ * The index is flat: vectors are normalized once, and a lookup is a dot product with every entry in the scope.
+ * That is fast enough for the few thousand entries this keeps. Least recently used entries are evicted beyond the
+ * max size, and entries expire after the TTL.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class SemanticCache {
+
+    // Lookups that scored this close below the threshold are counted as near misses, to help tune the threshold
+    private static final double NEAR_MISS_MARGIN = 0.05;
+    // The embedding model only sees the start of longer text (512 tokens), so prompts that only differ after that would match
+    private static final int MAX_PROMPT_CHARS = 2000;
+
+    @Inject
+    RetrievalProvider retrievalProvider;
+
+    @Inject
+    ResponseCache responseCache;
+
+    @Inject
+    SystemPrompts systemPrompts;
+
+    @ConfigProperty(name = "chappie.cache.semantic.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "chappie.cache.semantic.threshold", defaultValue = "0.95")
+    double threshold;
+
+    @ConfigProperty(name = "chappie.cache.semantic.max-size", defaultValue = "2000")
+    int maxSize;
+
+    @ConfigProperty(name = "chappie.cache.semantic.ttl", defaultValue = "PT1H")
+    Duration ttl;
+
+    // Recency order over all scopes, for eviction; the scope lists are the index
+    private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, List<Entry>> scopes = new HashMap<>();
+    private long nextId;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong nearMisses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private double hitSimilaritySum;
+    private double minHitSimilarity = Double.NaN;
+
+    @PostConstruct
+    void init() {
+        if (enabled && retrievalProvider.embed("CHAPPiE").isEmpty()) {
+            Log.warn("CHAPPiE semantic cache is enabled, but the embedding model is not loaded; disabling it for this run");
+            enabled = false;
+        } else if (enabled) {
+            Log.infof("CHAPPiE semantic cache is enabled with similarity threshold %.2f", threshold);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled && maxSize > 0;
+    }
+
+    /**
+     * The scope of a request: everything that must be equal for an answer to be reused, except the user prompt
+     */
+    public String scope(GenericInput input, String responseSchema) {
+        return responseCache.key(new GenericInput(input.programmingLanguage(),
+                input.programmingLanguageVersion(),
+                input.quarkusVersion(),
+                input.systemmessageTemplate(),
+                "",
+                input.variables()), responseSchema);
+    }
+
+    /**
+     * @return the prompt embedding, to pass to get and put, or null if the prompt can not be embedded
+     */
+    public float[] embed(String userMessage) {
+        if (userMessage == null || userMessage.length() > MAX_PROMPT_CHARS) return null;
+        return retrievalProvider.embed(userMessage).map(Embedding::vector).map(SemanticCache::normalize).orElse(null);
+    }
+
+    /**
+     * Finds the most similar earlier prompt in the scope
+     * @return the hit, with the exchange to remember in chat memory for this prompt, or null if nothing is similar enough
+     */
+    public Hit get(String scope, float[] vector, String userMessage) {
+        lookups.incrementAndGet();
+        Entry best = null;
+        double bestSimilarity = -1;
+        synchronized (entries) {
+            List<Entry> candidates = scopes.get(scope);
+            if (candidates == null) return null;
+            long now = System.nanoTime();
+            for (Iterator<Entry> it = candidates.iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (now - entry.createdAt() > ttl.toNanos()) {
+                    it.remove();
+                    entries.remove(entry.id());
+                    continue;
+                }
+                double similarity = dot(vector, entry.vector());
+                if (similarity > bestSimilarity) {
+                    best = entry;
+                    bestSimilarity = similarity;
+                }
+            }
+            if (candidates.isEmpty()) scopes.remove(scope);
+            if (best == null) return null;
+            if (bestSimilarity < threshold) {
+                if (bestSimilarity >= threshold - NEAR_MISS_MARGIN) nearMisses.incrementAndGet();
+                return null;
+            }
+            entries.get(best.id()); // mark as recently used
+            hits.incrementAndGet();
+            hitSimilaritySum += bestSimilarity;
+            minHitSimilarity = Double.isNaN(minHitSimilarity) ? bestSimilarity : Math.min(minHitSimilarity, bestSimilarity);
+        }
+        Log.debugf("CHAPPiE semantic cache: hit with similarity %.3f", bestSimilarity);
+
+        // The earlier prompt was worded differently, so the user message is this one
+        List<ChatMessage> exchange = new ArrayList<>(best.system());
+        exchange.add(UserMessage.from(systemPrompts.renderUserMessage(userMessage)));
+        exchange.add(best.answerMessage());
+        return new Hit(best.answer(), exchange, bestSimilarity);
+    }
+
+    /**
+     * @param memory the chat memory right after the answer; the system message and the final answer are kept
+     */
+    public void put(String scope, float[] vector, Map<String, Object> answer, List<ChatMessage> memory) {
+        List<ChatMessage> system = new ArrayList<>();
+        AiMessage answerMessage = null;
+        for (ChatMessage message : memory) {
+            if (message instanceof SystemMessage) system.add(message);
+            if (message instanceof AiMessage ai && !ai.hasToolExecutionRequests()) answerMessage = ai;
+        }
+        if (answerMessage == null) return;
+
+        synchronized (entries) {
+            Entry entry = new Entry(nextId++, scope, vector, Collections.unmodifiableMap(new LinkedHashMap<>(answer)),
+                    List.copyOf(system), answerMessage, System.nanoTime());
+            entries.put(entry.id(), entry);
+            scopes.computeIfAbsent(scope, s -> new ArrayList<>()).add(entry);
+            while (entries.size() > maxSize) {
+                Entry eldest = entries.values().iterator().next();
+                entries.remove(eldest.id());
+                List<Entry> inScope = scopes.get(eldest.scope());
+                inScope.remove(eldest);
+                if (inScope.isEmpty()) scopes.remove(eldest.scope());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public Stats stats() {
+        synchronized (entries) {
+            long h = hits.get();
+            return new Stats(lookups.get(), h, nearMisses.get(), evictions.get(), entries.size(), threshold,
+                    h == 0 ? Optional.empty() : Optional.of(hitSimilaritySum / h),
+                    h == 0 ? Optional.empty() : Optional.of(minHitSimilarity));
+        }
+    }
+
+    static float[] normalize(float[] vector) {
+        double sum = 0;
+        for (float v : vector) sum += v * v;
+        if (sum == 0) return vector;
+        float norm = (float) Math.sqrt(sum);
+        float[] out = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) out[i] = vector[i] / norm;
+        return out;
+    }
+
+    static double dot(float[] a, float[] b) {
+        if (a.length != b.length) return -1;
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
+        return sum;
+    }
+
+    public record Hit(Map<String, Object> answer, List<ChatMessage> exchange, double similarity) {}
+
+    /**
+     * @param nearMisses lookups that did not hit, but scored within 0.05 of the threshold
+     * @param meanHitSimilarity the average similarity of the hits; close to the threshold means it may be too low
+     */
+    public record Stats(long lookups, long hits, long nearMisses, long evictions, int size, double threshold,
+            Optional<Double> meanHitSimilarity, Optional<Double> minHitSimilarity) {}
+
+    private record Entry(long id, String scope, float[] vector, Map<String, Object> answer,
+            List<ChatMessage> system, AiMessage answerMessage, long createdAt) {}
+}
@@ -0,0 +1,21 @@
+package org.chappiebot.assist;
+
+import dev.langchain4j.service.MemoryId;
+import dev.langchain4j.service.SystemMessage;
+import dev.langchain4j.service.TokenStream;
+import dev.langchain4j.service.UserMessage;
+import dev.langchain4j.service.V;
+
+/**
+ * The streaming variant of the Assistant, with the same prompts.
+ * The answer (the same JSON the Assistant returns) is delivered token by token.
+ */
+public interface StreamingAssistant {
+
+    @SystemMessage(Assistant.SYSTEM_PROMPT)
+    @UserMessage(Assistant.USER_MESSAGE)
+    public TokenStream assist(@V("systemPrompt")String systemPrompt,
+                        @V("usermessage")String usermessage,
+                        @MemoryId String memoryId);
+
+}
@@ -0,0 +1,80 @@
+package org.chappiebot.assist;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.chappiebot.GenericInput;
+import org.chappiebot.MessageTemplate;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Renders the system message of the assistants. Requests use only a few combinations of language, versions and
+ * response schema, so the rendered part for each is kept (least recently used beyond the max size) and shared;
+ * the system message of the request is appended last. The user message is rendered here too, for the places that
+ * rebuild an exchange without the model.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class SystemPrompts {
+
+    private static final String SYSTEM_MESSAGE_VARIABLE = "{{systemmessage}}";
+    private static final MessageTemplate PREFIX;
+    private static final String SUFFIX;
+    private static final MessageTemplate USER = MessageTemplate.of(Assistant.USER_MESSAGE);
+
+    static {
+        int at = Assistant.SYSTEM_MESSAGE.lastIndexOf(SYSTEM_MESSAGE_VARIABLE);
+        PREFIX = MessageTemplate.of(Assistant.SYSTEM_MESSAGE.substring(0, at));
+        SUFFIX = Assistant.SYSTEM_MESSAGE.substring(at + SYSTEM_MESSAGE_VARIABLE.length());
+    }
+
+    @ConfigProperty(name = "chappie.prompt.system-cache.max-size", defaultValue = "256")
+    int maxSize;
+
+    private final Map<Key, String> prefixes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /**
+     * Assistant.SYSTEM_MESSAGE for this input
+     * @param responseSchema the response schema prompt, or null
+     */
+    public String render(GenericInput input, String responseSchema) {
+        String prefix = prefix(new Key(valueOf(input.programmingLanguage()), valueOf(input.programmingLanguageVersion()),
+                valueOf(input.quarkusVersion()), valueOf(responseSchema)));
+        return prefix + valueOf(input.getSystemMessage()) + SUFFIX;
+    }
+
+    /**
+     * Assistant.USER_MESSAGE for this user prompt, as the model gets it
+     */
+    public String renderUserMessage(String userMessage) {
+        return USER.render(Map.of("usermessage", valueOf(userMessage)));
+    }
+
+    private String prefix(Key key) {
+        synchronized (prefixes) {
+            String prefix = prefixes.get(key);
+            if (prefix != null) return prefix;
+        }
+        // Rendered outside the lock; two requests may both render a new key, and the last one is kept
+        String prefix = PREFIX.render(Map.of(
+                "programmingLanguage", key.programmingLanguage(),
+                "programmingLanguageVersion", key.programmingLanguageVersion(),
+                "quarkusVersion", key.quarkusVersion(),
+                "responseSchemaPrompt", key.responseSchema()));
+        synchronized (prefixes) {
+            prefixes.put(key, prefix);
+        }
+        return prefix;
+    }
+
+    private static String valueOf(String value) {
+        return value == null ? "" : value;
+    }
+
+    private record Key(String programmingLanguage, String programmingLanguageVersion, String quarkusVersion, String responseSchema) {}
+}
@@ -0,0 +1,59 @@
+package org.chappiebot.rag;
+
+/**
+ * The RAG context block that is added to the user message: the retrieved chunks, best first
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public final class RagContext {
+
+    public static final String CHUNK_SEPARATOR = "\n---\n";
+
+    private static final String START = "[RAG CONTEXT]";
+    private static final String END = "[/RAG CONTEXT]\n";
+    private static final String CONTEXT_START = "<context>\n";
+    private static final String CONTEXT_END = "\n</context>";
+    private static final String BEFORE_BLOCK = "\n\n";
+
+    private static final String BLOCK = START + """
+
+        Use this as a guide only. It may be incomplete or irrelevant.
+        If it conflicts with known facts or user intent, explain and prefer correctness.
+        If irrelevant, say so and answer without it.
+
+        """ + CONTEXT_START + "%s" + CONTEXT_END + "\n" + END;
+
+    private RagContext() {
+    }
+
+    /**
+     * The user text with the context block (the chunks joined with the chunk separator) after it
+     */
+    public static String inject(String userText, String chunks) {
+        String block = BLOCK.formatted(chunks);
+        return (userText == null || userText.isBlank()) ? block : userText + BEFORE_BLOCK + block;
+    }
+
+    /**
+     * The text without the last (least relevant) chunk of its context block, and without the block when that was the
+     * only chunk. Null if the text has no context block.
+     */
+    public static String withoutLastChunk(String text) {
+        if (text == null) return null;
+        int start = text.lastIndexOf(START);
+        if (start < 0) return null;
+        int contextStart = text.indexOf(CONTEXT_START, start);
+        int contextEnd = text.lastIndexOf(CONTEXT_END);
+        int end = text.lastIndexOf(END);
+        if (contextStart < 0 || contextEnd < contextStart || end < contextEnd) return null;
+        contextStart += CONTEXT_START.length();
+
+        int lastChunk = text.lastIndexOf(CHUNK_SEPARATOR, contextEnd - 1);
+        if (lastChunk >= contextStart) {
+            return text.substring(0, lastChunk) + text.substring(contextEnd);
+        }
+        int blockStart = start >= BEFORE_BLOCK.length() && text.startsWith(BEFORE_BLOCK, start - BEFORE_BLOCK.length())
+                ? start - BEFORE_BLOCK.length()
+                : start;
+        return text.substring(0, blockStart) + text.substring(end + END.length());
+    }
+}
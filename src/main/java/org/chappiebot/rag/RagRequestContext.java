@@ -6,6 +6,7 @@ import java.util.Map;
 @RequestScoped
 public class RagRequestContext {
     private Map<String,String> variables;
+    private SharedRetrieval sharedRetrieval;
 
     public Map<String, String> getVariables() {
         return variables;
@@ -14,4 +15,12 @@ public class RagRequestContext {
     public void setVariables(Map<String, String> variables) {
         this.variables = variables;
     }
+
+    public SharedRetrieval getSharedRetrieval() {
+        return sharedRetrieval;
+    }
+
+    public void setSharedRetrieval(SharedRetrieval sharedRetrieval) {
+        this.sharedRetrieval = sharedRetrieval;
+    }
 }
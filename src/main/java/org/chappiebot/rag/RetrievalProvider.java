@@ -10,6 +10,7 @@ import dev.langchain4j.model.embedding.onnx.bgesmallenv15q.BgeSmallEnV15Quantize
 import dev.langchain4j.rag.DefaultRetrievalAugmentor;
 import dev.langchain4j.rag.RetrievalAugmentor;
 import dev.langchain4j.rag.content.injector.ContentInjector;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
 import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
@@ -30,6 +31,7 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -53,6 +55,9 @@ public class RetrievalProvider {
     @Inject
     StoreManager storeManager;
 
+    @Inject
+    RagRequestContext ragRequestContext;
+
     EmbeddingModel embeddingModel;
 
     private EmbeddingStore<TextSegment> embeddingStore;
@@ -86,6 +91,15 @@ public class RetrievalProvider {
         return ragMaxResults;
     }
 
+    /**
+     * Embeds the text with the same model that is used for RAG
+     * @return the embedding, or empty when the embedding model is not loaded
+     */
+    public Optional<Embedding> embed(String text) {
+        if (embeddingModel == null || text == null || text.isBlank()) return Optional.empty();
+        return Optional.of(embeddingModel.embed(text).content());
+    }
+
     private void loadVectorStore() {
         this.embeddingStore = storeManager.getStore().orElse(null);
     }
@@ -273,7 +287,7 @@ public class RetrievalProvider {
     public RetrievalAugmentor getRetrievalAugmentor(Function<Query, Filter> filterFunction) {
         if (ragEnabled && embeddingModel != null) {
 
-            var retriever = EmbeddingStoreContentRetriever.builder()
+            var embeddingRetriever = EmbeddingStoreContentRetriever.builder()
                     .embeddingStore(embeddingStore)
                     .embeddingModel(embeddingModel)
                     .maxResults(ragMaxResults)
@@ -281,6 +295,13 @@ public class RetrievalProvider {
                     .dynamicFilter(filterFunction)
                     .build();
 
+            // Requests in a batch share their retrievals
+            ContentRetriever retriever = query -> {
+                SharedRetrieval shared = ragRequestContext.getSharedRetrieval();
+                if (shared == null) return embeddingRetriever.retrieve(query);
+                return shared.retrieve(filterFunction.apply(query), query, embeddingRetriever);
+            };
+
             // TODO: Maybe skip RAG if the user message word count is less than 3 or something ?
         
             ContentInjector contentInjector = new ContentInjector(){
@@ -310,28 +331,14 @@ public class RetrievalProvider {
                         })
                         .filter(s -> !s.isBlank())
                         .limit(ragMaxResults)
-                        .collect(Collectors.joining("\n---\n"));
+                        .collect(Collectors.joining(RagContext.CHUNK_SEPARATOR));
 
                     if (contextBlock.isBlank()) {
                         return cm;
                     }
 
-                    String preface = """
-                        [RAG CONTEXT]
-                        Use this as a guide only. It may be incomplete or irrelevant.
-                        If it conflicts with known facts or user intent, explain and prefer correctness.
-                        If irrelevant, say so and answer without it.
-
-                        <context>
-                        %s
-                        </context>
-                        [/RAG CONTEXT]
-                        """.formatted(contextBlock);
-
                     String userText = ((UserMessage) cm).singleText();
-                    String combined = (userText == null || userText.isBlank())
-                        ? preface
-                        : userText + "\n\n" + preface;
+                    String combined = RagContext.inject(userText, contextBlock);
 
                     return UserMessage.from(combined);
                 }
@@ -0,0 +1,74 @@
+package org.chappiebot.rag;
+
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.store.embedding.filter.Filter;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retrievals shared by the requests of one batch: requests with the same extension (filter) and the same query
+ * embed and search once, also when they run at the same time. Set on the RagRequestContext of each request.
+ * Only identical queries share: items with the same extension but another prompt (another file) still retrieve
+ * for themselves, since the documentation that fits one prompt does not fit the other.
+ * A request waits for a running retrieval for at most the timeout; after that it retrieves for itself.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class SharedRetrieval {
+
+    private final Map<Key, CompletableFuture<List<Content>>> retrievals = new ConcurrentHashMap<>();
+    private final AtomicInteger shared = new AtomicInteger();
+    private final Duration timeout;
+
+    public SharedRetrieval(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    List<Content> retrieve(Filter filter, Query query, ContentRetriever retriever) {
+        Key key = new Key(filter, query.text());
+        CompletableFuture<List<Content>> mine = new CompletableFuture<>();
+        CompletableFuture<List<Content>> existing = retrievals.putIfAbsent(key, mine);
+        if (existing != null) {
+            try {
+                List<Content> contents = existing.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                shared.incrementAndGet();
+                return contents;
+            } catch (TimeoutException e) {
+                return retriever.retrieve(query);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a retrieval", e);
+            }
+        }
+        try {
+            List<Content> contents = retriever.retrieve(query);
+            mine.complete(contents);
+            return contents;
+        } catch (RuntimeException e) {
+            // Not kept, so the next request tries again
+            retrievals.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * How many retrievals were answered by an earlier (or concurrent) one
+     */
+    public int getShared() {
+        return shared.get();
+    }
+
+    private record Key(Filter filter, String query) {}
+}
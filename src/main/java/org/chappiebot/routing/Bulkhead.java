@@ -0,0 +1,133 @@
+package org.chappiebot.routing;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of calls in flight to one provider. Calls over the limit wait in a bounded queue,
+ * for at most the max wait. When the queue is full (or the wait is over) the call is rejected right away
+ * with a ProviderBusyException, rather than piling up. A provider's chat and streaming calls share its Bulkhead.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class Bulkhead {
+
+    private static final int LATENCY_WINDOW = 200;
+
+    private final String name;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Duration maxWait;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LatencyWindow queueTimes = new LatencyWindow(LATENCY_WINDOW);
+    private final LatencyWindow callTimes = new LatencyWindow(LATENCY_WINDOW);
+
+    public Bulkhead(String name, int maxInFlight, int maxQueued, Duration maxWait) {
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(maxInFlight, true);
+    }
+
+    public <T> T call(Supplier<T> call) {
+        Permit permit = enter();
+        try {
+            return call.get();
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Admits a call that finishes later, like a stream. The call holds its place until the permit is released
+     */
+    public Permit enter() {
+        long start = System.nanoTime();
+        acquire(start);
+        long admittedAt = System.nanoTime();
+        queueTimes.record(admittedAt - start);
+        return new Permit(admittedAt);
+    }
+
+    private void acquire(long start) {
+        try {
+            // With a zero timeout (unlike tryAcquire()) this does not jump the queue
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                admitted.incrementAndGet();
+                return;
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                throw reject("queue is full");
+            }
+            try {
+                if (!permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+                    throw reject("waited " + Duration.ofNanos(System.nanoTime() - start).toMillis() + "ms");
+                }
+                admitted.incrementAndGet();
+            } finally {
+                queued.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted");
+        }
+    }
+
+    private ProviderBusyException reject(String reason) {
+        rejected.incrementAndGet();
+        return new ProviderBusyException(name + " is busy (" + reason + ")", retryAfter());
+    }
+
+    /**
+     * About how long until a call finishes and frees a place: the median call time, at least a second
+     */
+    private Duration retryAfter() {
+        long median = callTimes.percentile(50, 1);
+        return median < 1_000_000_000L ? Duration.ofSeconds(1) : Duration.ofSeconds((median + 999_999_999L) / 1_000_000_000L);
+    }
+
+    public Stats stats() {
+        long p50 = queueTimes.percentile(50, 1);
+        long p95 = queueTimes.percentile(95, 1);
+        return new Stats(name, maxInFlight, maxQueued, maxInFlight - permits.availablePermits(), queued.get(),
+                admitted.get(), rejected.get(),
+                p50 < 0 ? Optional.empty() : Optional.of(Duration.ofNanos(p50).toMillis()),
+                p95 < 0 ? Optional.empty() : Optional.of(Duration.ofNanos(p95).toMillis()));
+    }
+
+    /**
+     * The place of one admitted call; releasing it more than once has no effect
+     */
+    public final class Permit {
+
+        private final long admittedAt;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long admittedAt) {
+            this.admittedAt = admittedAt;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                callTimes.record(System.nanoTime() - admittedAt);
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * @param queueP50Millis the median time admitted calls waited for a place
+     */
+    public record Stats(String name, int maxInFlight, int maxQueued, int inFlight, int queued, long admitted,
+            long rejected, Optional<Long> queueP50Millis, Optional<Long> queueP95Millis) {}
+}
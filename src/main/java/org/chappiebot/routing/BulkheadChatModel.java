@@ -0,0 +1,36 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import java.util.Set;
+
+/**
+ * A provider's ChatModel behind its Bulkhead
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class BulkheadChatModel implements ChatModel {
+
+    private final ChatModel model;
+    private final Bulkhead bulkhead;
+
+    public BulkheadChatModel(ChatModel model, Bulkhead bulkhead) {
+        this.model = model;
+        this.bulkhead = bulkhead;
+    }
+
+    public Bulkhead bulkhead() {
+        return bulkhead;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest request) {
+        return bulkhead.call(() -> model.chat(request));
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return model.supportedCapabilities();
+    }
+}
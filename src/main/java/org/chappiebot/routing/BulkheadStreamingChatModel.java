@@ -0,0 +1,131 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.CompleteToolCall;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
+import dev.langchain4j.model.chat.response.PartialToolCall;
+import dev.langchain4j.model.chat.response.PartialToolCallContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import java.util.Set;
+
+/**
+ * A provider's StreamingChatModel behind its Bulkhead. A stream holds its place until it completes, fails or is
+ * cancelled. When the provider is busy, chat throws the ProviderBusyException before anything is streamed.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class BulkheadStreamingChatModel implements StreamingChatModel {
+
+    private final StreamingChatModel model;
+    private final Bulkhead bulkhead;
+
+    public BulkheadStreamingChatModel(StreamingChatModel model, Bulkhead bulkhead) {
+        this.model = model;
+        this.bulkhead = bulkhead;
+    }
+
+    public Bulkhead bulkhead() {
+        return bulkhead;
+    }
+
+    @Override
+    public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+        Bulkhead.Permit permit = bulkhead.enter();
+        try {
+            model.chat(request, new ReleasingHandler(handler, permit));
+        } catch (RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return model.supportedCapabilities();
+    }
+
+    private static class ReleasingHandler implements StreamingChatResponseHandler {
+
+        private final StreamingChatResponseHandler handler;
+        private final Bulkhead.Permit permit;
+
+        ReleasingHandler(StreamingChatResponseHandler handler, Bulkhead.Permit permit) {
+            this.handler = handler;
+            this.permit = permit;
+        }
+
+        @Override
+        public void onPartialResponse(String partialResponse) {
+            handler.onPartialResponse(partialResponse);
+        }
+
+        @Override
+        public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+            handler.onPartialResponse(partialResponse, new PartialResponseContext(releasing(context.streamingHandle())));
+        }
+
+        @Override
+        public void onPartialThinking(PartialThinking partialThinking) {
+            handler.onPartialThinking(partialThinking);
+        }
+
+        @Override
+        public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+            handler.onPartialThinking(partialThinking, new PartialThinkingContext(releasing(context.streamingHandle())));
+        }
+
+        @Override
+        public void onPartialToolCall(PartialToolCall partialToolCall) {
+            handler.onPartialToolCall(partialToolCall);
+        }
+
+        @Override
+        public void onPartialToolCall(PartialToolCall partialToolCall, PartialToolCallContext context) {
+            handler.onPartialToolCall(partialToolCall, new PartialToolCallContext(releasing(context.streamingHandle())));
+        }
+
+        @Override
+        public void onCompleteToolCall(CompleteToolCall completeToolCall) {
+            handler.onCompleteToolCall(completeToolCall);
+        }
+
+        @Override
+        public void onCompleteResponse(ChatResponse completeResponse) {
+            permit.release();
+            try {
+                handler.onCompleteResponse(completeResponse);
+            } catch (ProviderBusyException e) {
+                // The next call of a tool loop could not get a place
+                handler.onError(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            permit.release();
+            handler.onError(error);
+        }
+
+        // A cancelled stream does not complete, so cancelling frees the place (one that can not be cancelled still completes)
+        private StreamingHandle releasing(StreamingHandle streamingHandle) {
+            return new StreamingHandle() {
+                @Override
+                public void cancel() {
+                    streamingHandle.cancel();
+                    permit.release();
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return streamingHandle.isCancelled();
+                }
+            };
+        }
+    }
+}
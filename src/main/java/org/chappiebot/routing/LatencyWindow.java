@@ -0,0 +1,43 @@
+package org.chappiebot.routing;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recent successful calls, to get percentiles from
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+class LatencyWindow {
+
+    private final long[] nanos;
+    private int next;
+    private int size;
+
+    LatencyWindow(int capacity) {
+        this.nanos = new long[capacity];
+    }
+
+    synchronized void record(long latencyNanos) {
+        nanos[next] = latencyNanos;
+        next = (next + 1) % nanos.length;
+        if (size < nanos.length) size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in nanos, or -1 if there are fewer than minSamples
+     */
+    long percentile(double percentile, int minSamples) {
+        long[] sorted;
+        synchronized (this) {
+            if (size == 0 || size < minSamples) return -1;
+            sorted = Arrays.copyOf(nanos, size);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+}
@@ -0,0 +1,173 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import io.quarkus.logging.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.chappiebot.rag.RagContext;
+import org.chappiebot.store.TokenEstimator;
+
+/**
+ * Makes a request fit the model's context window before it is sent, so it does not fail at the provider after a
+ * full round trip. The tokens are estimated (TokenEstimator); room is kept for the answer. Over the limit, the request
+ * is trimmed in this order: the oldest turns of the history, then the RAG chunks (least relevant first).
+ * If it still does not fit, it fails here with a PromptTooLargeException.
+ * Only the request is trimmed; the chat memory keeps everything.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class PromptBudget {
+
+    // Context windows (in tokens) of known models, by (lower case) model name prefix; the longest prefix wins
+    static final Map<String, Integer> CONTEXT_LIMITS = Map.ofEntries(
+            Map.entry("gpt-3.5-turbo", 16_385),
+            Map.entry("gpt-4-turbo", 128_000),
+            Map.entry("gpt-4o", 128_000),
+            Map.entry("gpt-4.1", 1_047_576),
+            Map.entry("gpt-5", 400_000),
+            Map.entry("o1", 200_000),
+            Map.entry("o3", 200_000),
+            Map.entry("o4-mini", 200_000),
+            Map.entry("claude", 200_000),
+            Map.entry("gemini", 1_048_576),
+            Map.entry("ibm/granite", 131_072),
+            Map.entry("codellama", 16_384));
+
+    private final TokenEstimator estimator;
+    private final String model;
+    private final int contextLimit;
+    private final int reservedOutputTokens;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong trimmed = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong droppedChunks = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param reservedOutputTokens room kept for the answer, unless the request sets its max output tokens
+     */
+    public PromptBudget(TokenEstimator estimator, String model, int contextLimit, int reservedOutputTokens) {
+        this.estimator = estimator;
+        this.model = model;
+        this.contextLimit = contextLimit;
+        this.reservedOutputTokens = reservedOutputTokens;
+    }
+
+    /**
+     * The context window of the model: the configured one, else the known one, else the fallback
+     * @param configured context windows by model name prefix
+     */
+    public static int contextLimit(String model, Map<String, Integer> configured, int fallback) {
+        String name = model == null ? "" : model.toLowerCase(Locale.ROOT);
+        Integer limit = longestPrefix(name, configured);
+        if (limit == null) limit = longestPrefix(name, CONTEXT_LIMITS);
+        return limit == null ? fallback : limit;
+    }
+
+    private static Integer longestPrefix(String name, Map<String, Integer> limits) {
+        String best = null;
+        for (String prefix : limits.keySet()) {
+            if (name.startsWith(prefix.toLowerCase(Locale.ROOT)) && (best == null || prefix.length() > best.length())) {
+                best = prefix;
+            }
+        }
+        return best == null ? null : limits.get(best);
+    }
+
+    public int getContextLimit() {
+        return contextLimit;
+    }
+
+    /**
+     * The request as it is when it fits, else trimmed to fit
+     * @throws PromptTooLargeException when it does not fit without the history and the RAG chunks either
+     */
+    public ChatRequest fit(ChatRequest request) {
+        requests.incrementAndGet();
+        int output = request.maxOutputTokens() != null ? request.maxOutputTokens() : reservedOutputTokens;
+        int max = contextLimit - output;
+        int fixed = toolTokens(request.toolSpecifications());
+        List<ChatMessage> messages = request.messages();
+        int tokens = fixed + estimator.estimateTokenCountInMessages(messages);
+        if (tokens <= max) return request;
+
+        // The system message(s) and the current turn (from the last user message) stay; the turns before are the history
+        int historyStart = 0;
+        while (historyStart < messages.size() && messages.get(historyStart) instanceof SystemMessage) historyStart++;
+        int current = messages.size() - 1;
+        while (current > historyStart && !(messages.get(current) instanceof UserMessage)) current--;
+
+        List<ChatMessage> history = new ArrayList<>(messages.subList(historyStart, current));
+        int messagesBefore = history.size();
+        int chunks = 0;
+        int at = 0;
+        while (tokens > max && at < history.size()) {
+            // Whole turns, so the history still starts with a user message and tool results keep their request
+            do {
+                tokens -= estimator.estimateTokenCountInMessage(history.get(at++));
+            } while (at < history.size() && !(history.get(at) instanceof UserMessage));
+        }
+        history = history.subList(at, history.size());
+
+        ChatMessage last = messages.get(current);
+        if (tokens > max && last instanceof UserMessage user && user.hasSingleText()) {
+            String text = user.singleText();
+            String less;
+            while (tokens > max && (less = RagContext.withoutLastChunk(text)) != null) {
+                tokens -= estimator.estimateTokenCountInText(text) - estimator.estimateTokenCountInText(less);
+                text = less;
+                chunks++;
+            }
+            if (chunks > 0) last = user.toBuilder().contents(List.of(TextContent.from(text))).build();
+        }
+
+        if (tokens > max) {
+            rejected.incrementAndGet();
+            throw new PromptTooLargeException(tokens, max);
+        }
+
+        List<ChatMessage> fitted = new ArrayList<>(messages.size());
+        fitted.addAll(messages.subList(0, historyStart));
+        fitted.addAll(history);
+        fitted.add(last);
+        fitted.addAll(messages.subList(current + 1, messages.size()));
+
+        trimmed.incrementAndGet();
+        droppedMessages.addAndGet(messagesBefore - history.size());
+        droppedChunks.addAndGet(chunks);
+        Log.infof("CHAPPiE prompt budget: left out %d message(s) and %d RAG chunk(s) to fit %s (%d tokens)",
+                messagesBefore - history.size(), chunks, model, max);
+        return request.toBuilder().messages(fitted).build();
+    }
+
+    private int toolTokens(List<ToolSpecification> tools) {
+        if (tools == null) return 0;
+        int tokens = 0;
+        for (ToolSpecification tool : tools) {
+            tokens += estimator.estimateTokenCountInText(tool.name())
+                    + estimator.estimateTokenCountInText(tool.description())
+                    + estimator.estimateTokenCountInText(String.valueOf(tool.parameters()));
+        }
+        return tokens;
+    }
+
+    public Stats stats() {
+        return new Stats(model, contextLimit, requests.get(), trimmed.get(), droppedMessages.get(), droppedChunks.get(),
+                rejected.get());
+    }
+
+    /**
+     * @param trimmed requests that only fit without some history or RAG chunks
+     * @param rejected requests that did not fit at all
+     */
+    public record Stats(String model, int contextLimit, long requests, long trimmed, long droppedMessages,
+            long droppedChunks, long rejected) {}
+}
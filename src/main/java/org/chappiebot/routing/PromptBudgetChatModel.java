@@ -0,0 +1,32 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import java.util.Set;
+
+/**
+ * A ChatModel that only gets requests that fit its PromptBudget
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class PromptBudgetChatModel implements ChatModel {
+
+    private final ChatModel model;
+    private final PromptBudget budget;
+
+    public PromptBudgetChatModel(ChatModel model, PromptBudget budget) {
+        this.model = model;
+        this.budget = budget;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest request) {
+        return model.chat(budget.fit(request));
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return model.supportedCapabilities();
+    }
+}
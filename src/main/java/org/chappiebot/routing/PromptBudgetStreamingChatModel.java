@@ -0,0 +1,40 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import java.util.Set;
+
+/**
+ * A StreamingChatModel that only gets requests that fit its PromptBudget; a request that does not fit is an error
+ * of the stream
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class PromptBudgetStreamingChatModel implements StreamingChatModel {
+
+    private final StreamingChatModel model;
+    private final PromptBudget budget;
+
+    public PromptBudgetStreamingChatModel(StreamingChatModel model, PromptBudget budget) {
+        this.model = model;
+        this.budget = budget;
+    }
+
+    @Override
+    public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+        ChatRequest fitted;
+        try {
+            fitted = budget.fit(request);
+        } catch (PromptTooLargeException e) {
+            handler.onError(e);
+            return;
+        }
+        model.chat(fitted, handler);
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return model.supportedCapabilities();
+    }
+}
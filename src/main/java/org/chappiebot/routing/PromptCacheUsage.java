@@ -0,0 +1,74 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.ModelProvider;
+import dev.langchain4j.model.anthropic.AnthropicTokenUsage;
+import dev.langchain4j.model.chat.listener.ChatModelListener;
+import dev.langchain4j.model.chat.listener.ChatModelResponseContext;
+import dev.langchain4j.model.openai.OpenAiTokenUsage;
+import dev.langchain4j.model.output.TokenUsage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts, per provider, how many input tokens were read from the provider's prompt cache.
+ * OpenAI caches long prompt prefixes automatically; Anthropic caches up to the (marked) system message.
+ * Other providers do not report it, so only their input tokens are counted.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class PromptCacheUsage implements ChatModelListener {
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public void onResponse(ChatModelResponseContext context) {
+        TokenUsage usage = context.chatResponse().tokenUsage();
+        if (usage == null) return;
+        ModelProvider provider = context.modelProvider();
+        Counters c = counters.computeIfAbsent(provider == null ? "unknown" : provider.name(), p -> new Counters());
+        c.responses.incrementAndGet();
+
+        long input = valueOf(usage.inputTokenCount());
+        if (usage instanceof OpenAiTokenUsage openAi && openAi.inputTokensDetails() != null) {
+            // The input count includes the cached tokens
+            c.cachedTokens.addAndGet(valueOf(openAi.inputTokensDetails().cachedTokens()));
+        } else if (usage instanceof AnthropicTokenUsage anthropic) {
+            // The input count is only what was not read from or written to the cache
+            long read = valueOf(anthropic.cacheReadInputTokens());
+            long written = valueOf(anthropic.cacheCreationInputTokens());
+            c.cachedTokens.addAndGet(read);
+            c.cacheWriteTokens.addAndGet(written);
+            input += read + written;
+        }
+        c.inputTokens.addAndGet(input);
+    }
+
+    public List<Stats> stats() {
+        return counters.entrySet().stream()
+                .map(e -> {
+                    long input = e.getValue().inputTokens.get();
+                    long cached = e.getValue().cachedTokens.get();
+                    return new Stats(e.getKey(), e.getValue().responses.get(), input, cached,
+                            e.getValue().cacheWriteTokens.get(), input == 0 ? 0 : (double) cached / input);
+                })
+                .toList();
+    }
+
+    private static long valueOf(Integer count) {
+        return count == null ? 0 : count;
+    }
+
+    private static class Counters {
+        final AtomicLong responses = new AtomicLong();
+        final AtomicLong inputTokens = new AtomicLong();
+        final AtomicLong cachedTokens = new AtomicLong();
+        final AtomicLong cacheWriteTokens = new AtomicLong();
+    }
+
+    /**
+     * @param cachedRatio the part of the input tokens that was read from the cache
+     */
+    public record Stats(String provider, long responses, long inputTokens, long cachedTokens, long cacheWriteTokens,
+            double cachedRatio) {}
+}
@@ -0,0 +1,28 @@
+package org.chappiebot.routing;
+
+/**
+ * Thrown when a prompt does not fit the model's context window, even after trimming
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class PromptTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int estimatedTokens;
+    private final int maxTokens;
+
+    public PromptTooLargeException(int estimatedTokens, int maxTokens) {
+        super("The prompt is too large for the model: about " + estimatedTokens + " tokens, while " + maxTokens
+                + " fit (without the history and documentation it could leave out)");
+        this.estimatedTokens = estimatedTokens;
+        this.maxTokens = maxTokens;
+    }
+
+    public int getEstimatedTokens() {
+        return estimatedTokens;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+}
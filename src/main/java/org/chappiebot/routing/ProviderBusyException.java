@@ -0,0 +1,23 @@
+package org.chappiebot.routing;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a provider already has as many calls in flight and waiting as it is allowed
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class ProviderBusyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public ProviderBusyException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,122 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One provider the RoutingChatModel (and RoutingStreamingChatModel) can send requests to, with its health and latency.
+ * Both share the health; only answers of the ChatModel count for the latency.
+ * After a number of consecutive failures the provider is unhealthy for a while; it is then tried again
+ * and the first success makes it healthy.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class ProviderRoute {
+
+    private static final int LATENCY_WINDOW = 100;
+
+    private final String name;
+    private final ChatModel model;
+    private final StreamingChatModel streamingModel;
+    private final LatencyWindow latencies = new LatencyWindow(LATENCY_WINDOW);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long unhealthyUntil;
+
+    public ProviderRoute(String name, ChatModel model) {
+        this(name, model, null);
+    }
+
+    /**
+     * @param streamingModel the same provider for streaming, or null
+     */
+    public ProviderRoute(String name, ChatModel model, StreamingChatModel streamingModel) {
+        this.name = name;
+        this.model = model;
+        this.streamingModel = streamingModel;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public ChatModel model() {
+        return model;
+    }
+
+    public StreamingChatModel streamingModel() {
+        return streamingModel;
+    }
+
+    /**
+     * Healthy providers in the given order, then the unhealthy ones as a last resort
+     */
+    static List<ProviderRoute> healthyFirst(List<ProviderRoute> routes) {
+        long now = System.nanoTime();
+        List<ProviderRoute> healthy = new ArrayList<>(routes.size());
+        List<ProviderRoute> unhealthy = new ArrayList<>();
+        for (ProviderRoute route : routes) {
+            (route.isHealthy(now) ? healthy : unhealthy).add(route);
+        }
+        healthy.addAll(unhealthy);
+        return healthy;
+    }
+
+    boolean isHealthy(long now) {
+        return now - unhealthyUntil >= 0;
+    }
+
+    void started() {
+        requests.incrementAndGet();
+    }
+
+    void hedged() {
+        hedges.incrementAndGet();
+    }
+
+    void succeeded(long latencyNanos) {
+        latencies.record(latencyNanos);
+        consecutiveFailures.set(0);
+    }
+
+    // A stream takes as long as the answer is, so it says nothing about the latency
+    void streamed() {
+        consecutiveFailures.set(0);
+    }
+
+    void failed(int failureThreshold, Duration cooldown) {
+        failures.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            unhealthyUntil = System.nanoTime() + cooldown.toNanos();
+        }
+    }
+
+    /**
+     * @return the latency in nanos, or -1 if not enough calls succeeded yet
+     */
+    long percentile(double percentile, int minSamples) {
+        return latencies.percentile(percentile, minSamples);
+    }
+
+    public Stats stats() {
+        long p50 = latencies.percentile(50, 1);
+        long p95 = latencies.percentile(95, 1);
+        return new Stats(name, isHealthy(System.nanoTime()), requests.get(), failures.get(), hedges.get(),
+                consecutiveFailures.get(),
+                p50 < 0 ? Optional.empty() : Optional.of(Duration.ofNanos(p50).toMillis()),
+                p95 < 0 ? Optional.empty() : Optional.of(Duration.ofNanos(p95).toMillis()));
+    }
+
+    /**
+     * @param hedges backup requests sent because this provider was slower than its p95
+     */
+    public record Stats(String name, boolean healthy, long requests, long failures, long hedges,
+            int consecutiveFailures, Optional<Long> p50Millis, Optional<Long> p95Millis) {}
+}
@@ -0,0 +1,192 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import io.quarkus.logging.Log;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A ChatModel that sends each request to one of several providers.
+ * Providers are tried in the configured order, skipping unhealthy ones. When a provider fails (an error, a timeout
+ * or a rate limit), the request fails over to the next one. With hedging, when a provider has not answered within
+ * its own p95 latency, a backup request is sent to the next provider, and whichever answers first is used.
+ * A provider that is busy (its bulkhead is full) is skipped for that request, but is not counted as failing.
+ *
+ * Every provider applies its own default request parameters, so this just passes the request on.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class RoutingChatModel implements ChatModel, AutoCloseable {
+
+    private final List<ProviderRoute> routes;
+    private final boolean hedging;
+    private final int hedgingMinSamples;
+    private final int failureThreshold;
+    private final Duration cooldown;
+    private final ExecutorService executor;
+
+    /**
+     * @param routes the providers, in order of preference
+     * @param hedging send a backup request when a provider is slower than its p95
+     * @param hedgingMinSamples the number of successful calls needed before a provider's p95 is trusted
+     * @param failureThreshold consecutive failures after which a provider is skipped
+     * @param cooldown how long an unhealthy provider is skipped
+     */
+    public RoutingChatModel(List<ProviderRoute> routes, boolean hedging, int hedgingMinSamples, int failureThreshold, Duration cooldown) {
+        if (routes.isEmpty()) throw new IllegalArgumentException("No providers to route to");
+        this.routes = List.copyOf(routes);
+        this.hedging = hedging;
+        this.hedgingMinSamples = hedgingMinSamples;
+        this.failureThreshold = failureThreshold;
+        this.cooldown = cooldown;
+        this.executor = hedging ? Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "chappie-routing");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest request) {
+        List<ProviderRoute> order = order();
+        return hedging ? chatHedged(request, order) : chatInOrder(request, order);
+    }
+
+    private ChatResponse chatInOrder(ChatRequest request, List<ProviderRoute> order) {
+        RuntimeException last = null;
+        for (ProviderRoute route : order) {
+            try {
+                return call(route, request, null);
+            } catch (RuntimeException e) {
+                last = failedOver(route, e, last);
+            }
+        }
+        throw last;
+    }
+
+    private ChatResponse chatHedged(ChatRequest request, List<ProviderRoute> order) {
+        CompletionService<ChatResponse> completion = new ExecutorCompletionService<>(executor);
+        List<Future<ChatResponse>> started = new ArrayList<>();
+        AtomicBoolean decided = new AtomicBoolean();
+        RuntimeException last = null;
+        boolean hedged = false;
+        int next = 0;
+        int running = 0;
+
+        ProviderRoute first = order.get(next++);
+        ProviderRoute current = first;
+        started.add(completion.submit(() -> call(first, request, decided)));
+        running++;
+        try {
+            while (running > 0) {
+                Future<ChatResponse> done;
+                // Waits from (just after) the start of the current request
+                long p95 = hedged || next >= order.size() ? -1 : current.percentile(95, hedgingMinSamples);
+                if (p95 > 0) {
+                    done = completion.poll(p95, TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        // Slower than usual; race a backup request against it. Only one backup per request
+                        hedged = true;
+                        current.hedged();
+                        ProviderRoute backup = order.get(next++);
+                        Log.debugf("CHAPPiE routing: %s is slow, hedging with %s", current.name(), backup.name());
+                        current = backup;
+                        started.add(completion.submit(() -> call(backup, request, decided)));
+                        running++;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                running--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error error) throw error;
+                    last = (RuntimeException) e.getCause();
+                    if (running == 0 && next < order.size()) {
+                        ProviderRoute failover = order.get(next++);
+                        current = failover;
+                        started.add(completion.submit(() -> call(failover, request, decided)));
+                        running++;
+                    }
+                }
+            }
+            throw last;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the model", e);
+        } finally {
+            decided.set(true);
+            started.forEach(f -> f.cancel(true));
+        }
+    }
+
+    /**
+     * @param decided set once the request is answered; a failure after that (for example when the losing request
+     *                of a hedge is cancelled) does not count against the provider
+     */
+    private ChatResponse call(ProviderRoute route, ChatRequest request, AtomicBoolean decided) {
+        route.started();
+        long start = System.nanoTime();
+        try {
+            ChatResponse response = route.model().chat(request);
+            route.succeeded(System.nanoTime() - start);
+            return response;
+        } catch (RuntimeException e) {
+            if (decided == null) throw e;
+            if (!decided.get()) failedOver(route, e, null);
+            throw e;
+        }
+    }
+
+    private RuntimeException failedOver(ProviderRoute route, RuntimeException e, RuntimeException previous) {
+        if (e instanceof ProviderBusyException) {
+            // Busy is not broken
+            Log.debugf("CHAPPiE routing: %s is busy, failing over", route.name());
+        } else {
+            route.failed(failureThreshold, cooldown);
+            Log.warnf("CHAPPiE routing: %s failed (%s), failing over", route.name(), e.getMessage());
+        }
+        if (previous != null && previous != e) e.addSuppressed(previous);
+        return e;
+    }
+
+    private List<ProviderRoute> order() {
+        return ProviderRoute.healthyFirst(routes);
+    }
+
+    public List<ProviderRoute.Stats> stats() {
+        return routes.stream().map(ProviderRoute::stats).toList();
+    }
+
+    /**
+     * Only what every provider supports, as any of them may get the request
+     */
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        Set<Capability> capabilities = EnumSet.allOf(Capability.class);
+        for (ProviderRoute route : routes) {
+            capabilities.retainAll(route.model().supportedCapabilities());
+        }
+        return capabilities;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) executor.shutdownNow();
+    }
+}
@@ -0,0 +1,62 @@
+package org.chappiebot.routing;
+
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.util.List;
+import org.chappiebot.AssistantRegistry;
+import org.chappiebot.ChappieService;
+
+/**
+ * The Endpoint for the state of the providers: health and latency when routing over several,
+ * the calls in flight, queued and rejected by their bulkheads, their prompt cache use, the prompts trimmed to fit
+ * their context window, and the assistants built on them
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@Path("/api/routing")
+public class RoutingEndpoint {
+
+    @Inject
+    ChappieService chappieService;
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getProviders() {
+        return chappieService.getRoutingStats()
+            .map(stats -> Response.ok(stats).build())
+            .orElseGet(() -> Response.noContent().build());
+    }
+
+    @GET
+    @Path("/bulkheads")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Bulkhead.Stats> getBulkheads() {
+        return chappieService.getBulkheadStats();
+    }
+
+    @GET
+    @Path("/prompt-cache")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<PromptCacheUsage.Stats> getPromptCache() {
+        return chappieService.getPromptCacheStats();
+    }
+
+    @GET
+    @Path("/prompt-budget")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getPromptBudget() {
+        return chappieService.getPromptBudgetStats()
+            .map(stats -> Response.ok(stats).build())
+            .orElseGet(() -> Response.noContent().build());
+    }
+
+    @GET
+    @Path("/assistants")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<AssistantRegistry.Stats> getAssistants() {
+        return chappieService.getAssistantStats();
+    }
+}
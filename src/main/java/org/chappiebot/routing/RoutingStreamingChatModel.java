@@ -0,0 +1,200 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.CompleteToolCall;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
+import dev.langchain4j.model.chat.response.PartialToolCall;
+import dev.langchain4j.model.chat.response.PartialToolCallContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import io.quarkus.logging.Log;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A StreamingChatModel that sends each request to one of several providers, over the same routes (and health) as
+ * the RoutingChatModel. When a provider fails before anything is streamed (it can not be reached, is busy, or reports
+ * an error before the first token), the request fails over to the next one. Once the first token is streamed the
+ * stream stays with that provider, and a later error goes to the handler. There is no hedging for streams.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class RoutingStreamingChatModel implements StreamingChatModel {
+
+    private final List<ProviderRoute> routes;
+    private final int failureThreshold;
+    private final Duration cooldown;
+
+    /**
+     * @param routes the providers, in order of preference; those without a streaming model are left out
+     * @param failureThreshold consecutive failures after which a provider is skipped
+     * @param cooldown how long an unhealthy provider is skipped
+     */
+    public RoutingStreamingChatModel(List<ProviderRoute> routes, int failureThreshold, Duration cooldown) {
+        this.routes = routes.stream().filter(route -> route.streamingModel() != null).toList();
+        if (this.routes.isEmpty()) throw new IllegalArgumentException("No providers to stream from");
+        this.failureThreshold = failureThreshold;
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * @throws RuntimeException the failure of the last provider, when none of them could start the stream
+     */
+    @Override
+    public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+        new Attempt(request, handler, ProviderRoute.healthyFirst(routes)).start();
+    }
+
+    private void failedOver(ProviderRoute route, Throwable e) {
+        if (e instanceof ProviderBusyException) {
+            // Busy is not broken
+            Log.debugf("CHAPPiE routing: %s is busy, failing over", route.name());
+        } else {
+            route.failed(failureThreshold, cooldown);
+            Log.warnf("CHAPPiE routing: %s failed to stream (%s), failing over", route.name(), e.getMessage());
+        }
+    }
+
+    /**
+     * Only what every provider supports, as any of them may get the request
+     */
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        Set<Capability> capabilities = EnumSet.allOf(Capability.class);
+        for (ProviderRoute route : routes) {
+            capabilities.retainAll(route.streamingModel().supportedCapabilities());
+        }
+        return capabilities;
+    }
+
+    /**
+     * One request, going down the providers until one of them streams
+     */
+    private class Attempt {
+
+        private final ChatRequest request;
+        private final StreamingChatResponseHandler handler;
+        private final List<ProviderRoute> order;
+        // Moves on the caller's thread first, then on the threads of the providers that fail, one after the other
+        private volatile int next;
+
+        Attempt(ChatRequest request, StreamingChatResponseHandler handler, List<ProviderRoute> order) {
+            this.request = request;
+            this.handler = handler;
+            this.order = order;
+        }
+
+        // On the caller's thread: when no provider takes the request, the caller gets the exception (a busy provider stays a 503)
+        void start() {
+            Throwable last = tryNext(null);
+            // Only what the providers threw right away, so never a checked exception
+            if (last != null) throw (RuntimeException) last;
+        }
+
+        // On the thread of the provider that failed
+        void failOver(Throwable failure) {
+            Throwable last = tryNext(failure);
+            if (last != null) handler.onError(last);
+        }
+
+        /**
+         * Starts the stream on the next provider that takes it
+         * @return null once a provider took it, otherwise the last failure
+         */
+        private Throwable tryNext(Throwable last) {
+            while (next < order.size()) {
+                ProviderRoute route = order.get(next++);
+                route.started();
+                try {
+                    route.streamingModel().chat(request, new FailoverHandler(this, route));
+                    return null;
+                } catch (RuntimeException e) {
+                    failedOver(route, e);
+                    if (last != null && last != e) e.addSuppressed(last);
+                    last = e;
+                }
+            }
+            return last;
+        }
+    }
+
+    /**
+     * Passes everything on; only an error before the first token goes to the next provider instead
+     */
+    private class FailoverHandler implements StreamingChatResponseHandler {
+
+        private final Attempt attempt;
+        private final ProviderRoute route;
+        private volatile boolean streaming;
+
+        FailoverHandler(Attempt attempt, ProviderRoute route) {
+            this.attempt = attempt;
+            this.route = route;
+        }
+
+        @Override
+        public void onPartialResponse(String partialResponse) {
+            streaming = true;
+            attempt.handler.onPartialResponse(partialResponse);
+        }
+
+        @Override
+        public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+            streaming = true;
+            attempt.handler.onPartialResponse(partialResponse, context);
+        }
+
+        @Override
+        public void onPartialThinking(PartialThinking partialThinking) {
+            streaming = true;
+            attempt.handler.onPartialThinking(partialThinking);
+        }
+
+        @Override
+        public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+            streaming = true;
+            attempt.handler.onPartialThinking(partialThinking, context);
+        }
+
+        @Override
+        public void onPartialToolCall(PartialToolCall partialToolCall) {
+            streaming = true;
+            attempt.handler.onPartialToolCall(partialToolCall);
+        }
+
+        @Override
+        public void onPartialToolCall(PartialToolCall partialToolCall, PartialToolCallContext context) {
+            streaming = true;
+            attempt.handler.onPartialToolCall(partialToolCall, context);
+        }
+
+        @Override
+        public void onCompleteToolCall(CompleteToolCall completeToolCall) {
+            streaming = true;
+            attempt.handler.onCompleteToolCall(completeToolCall);
+        }
+
+        @Override
+        public void onCompleteResponse(ChatResponse completeResponse) {
+            route.streamed();
+            attempt.handler.onCompleteResponse(completeResponse);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (streaming || error instanceof Error) {
+                if (!(error instanceof ProviderBusyException)) route.failed(failureThreshold, cooldown);
+                attempt.handler.onError(error);
+                return;
+            }
+            failedOver(route, error);
+            attempt.failOver(error);
+        }
+    }
+}
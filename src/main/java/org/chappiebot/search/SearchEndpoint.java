@@ -1,6 +1,7 @@
 package org.chappiebot.search;
 
 import io.quarkus.logging.Log;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
@@ -18,7 +19,9 @@ public class SearchEndpoint {
     @Inject
     RetrievalProvider retrievalProvider;
 
+    // The query embedding (ONNX) and the vector search (JDBC) block; on a virtual thread that is cheap
     @POST
+    @RunOnVirtualThread
     public Response search(SearchRequest query) {
         if (query == null || query.queryMessage() == null || query.queryMessage().isBlank()) {
             return Response.status(Response.Status.BAD_REQUEST)
@@ -0,0 +1,45 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.data.message.ChatMessageType;
+import java.io.IOException;
+
+/**
+ * A forward only view of one conversation: the summary plus the (non-system) messages in their stored JSON form.
+ * The summary is read when the cursor is opened. The messages are read with one query while they are consumed, so memory use
+ * does not grow with the conversation; a connection is only held during that walk, and nothing is left open if it never happens.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class ChatCursor {
+
+    private final MemorySummary summary;
+    private final Messages messages;
+
+    ChatCursor(MemorySummary summary, Messages messages) {
+        this.summary = summary;
+        this.messages = messages;
+    }
+
+    public MemorySummary summary() {
+        return summary;
+    }
+
+    /**
+     * Hands every message, in order, to the consumer.
+     */
+    public void forEachMessage(MessageConsumer consumer) throws IOException {
+        messages.forEach(consumer);
+    }
+
+    @FunctionalInterface
+    public interface MessageConsumer {
+        void accept(ChatMessageType type, String json) throws IOException;
+    }
+
+    /**
+     * Reads the messages and hands them to the consumer, releasing what it used before it returns
+     */
+    @FunctionalInterface
+    interface Messages {
+        void forEach(MessageConsumer consumer) throws IOException;
+    }
+}
@@ -0,0 +1,227 @@
+package org.chappiebot.store;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.quarkus.logging.Log;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.chappiebot.ChappieService;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Keeps long conversations small. Once a conversation has more messages than the threshold, the oldest ones are
+ * summarized (off the request path, by the compaction model) and replaced by that summary, that is prepended to
+ * the first message that is kept. The original messages are moved to the archive table, so the full conversation
+ * can still be shown.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@ApplicationScoped
+public class ConversationCompactor {
+
+    static final String SUMMARY_START = "[CONVERSATION SUMMARY]";
+    static final String SUMMARY_END = "[/CONVERSATION SUMMARY]";
+
+    private static final int MAX_TOOL_RESULT_CHARS = 2000;
+    private static final int QUEUE_SIZE = 100;
+
+    private static final String PROMPT = """
+        You compact the start of a conversation between a developer and CHAPPiE, an AI assistant for Quarkus developers.
+        Write a concise summary of it that lets the conversation continue without the original messages.
+        Keep facts, decisions, code identifiers, versions, error messages and open questions. Leave out pleasantries.
+        If a summary of even earlier messages is given, fold it into the new summary.
+        Respond with a JSON object with a single field "summary" that contains the summary as plain text.
+        """;
+
+    @Inject
+    StoreManager storeManager;
+
+    @Inject
+    ChappieService chappieService;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @ConfigProperty(name = "chappie.store.compaction.enabled", defaultValue = "false")
+    boolean enabled;
+
+    // Number of messages (not counting the system message) after which a conversation is compacted
+    @ConfigProperty(name = "chappie.store.compaction.threshold", defaultValue = "20")
+    int threshold;
+
+    // Number of most recent messages that are kept as-is
+    @ConfigProperty(name = "chappie.store.compaction.keep", defaultValue = "6")
+    int keep;
+
+    @ConfigProperty(name = "chappie.store.compaction.threads", defaultValue = "1")
+    int threads;
+
+    private final TokenEstimator tokenEstimator = new TokenEstimator();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    void init() {
+        if (!enabled) return;
+        Log.infof("CHAPPiE conversation compaction is enabled (after %d messages, keeping %d)", threshold, keep);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+            Thread t = new Thread(r, "chappie-compaction");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * Compacts the conversation in the background, if it is over the threshold.
+     * Returns immediately; a conversation that is already queued is not queued again.
+     */
+    public void compactLater(String memoryId) {
+        if (!enabled || memoryId == null || !pending.add(memoryId)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    compact(memoryId);
+                } catch (RuntimeException e) {
+                    Log.warnf("CHAPPiE compaction of %s failed: %s", memoryId, e.getMessage());
+                } finally {
+                    pending.remove(memoryId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Busy; it will be picked up again after the next turn
+            pending.remove(memoryId);
+        }
+    }
+
+    void compact(String memoryId) {
+        Optional<JdbcChatMemoryStore> store = storeManager.getJdbcChatMemoryStore();
+        if (store.isEmpty()) return;
+        Optional<MemorySummary> summary = store.get().getSummary(memoryId);
+        // The count includes the system message
+        if (summary.isEmpty() || summary.get().messageCount() <= threshold + 1) return;
+
+        List<TokenCountedMessage> messages = store.get().getTokenCountedMessages(memoryId);
+        int first = 0;
+        while (first < messages.size() && messages.get(first).message() instanceof SystemMessage) first++;
+        if (messages.size() - first <= threshold) return;
+
+        // Keep whole turns: the kept messages start with a user message
+        int keepFrom = Math.max(messages.size() - keep, first + 1);
+        while (keepFrom < messages.size() && !(messages.get(keepFrom).message() instanceof UserMessage)) keepFrom++;
+        if (keepFrom >= messages.size() || keepFrom - first < 2) return;
+
+        String text = summarize(messages.subList(first, keepFrom));
+        if (text == null || text.isBlank()) return;
+
+        List<TokenCountedMessage> compacted = new ArrayList<>(messages.size() - keepFrom + first + 1);
+        for (TokenCountedMessage m : messages.subList(0, keepFrom)) {
+            if (m.message() instanceof SystemMessage) compacted.add(m);
+        }
+        UserMessage merged = withSummary((UserMessage) messages.get(keepFrom).message(), text.strip());
+        compacted.add(new TokenCountedMessage(merged, tokenEstimator.estimateTokenCountInMessage(merged)));
+        compacted.addAll(messages.subList(keepFrom + 1, messages.size()));
+
+        if (store.get().compact(memoryId, summary.get().lastActivity(), keepFrom, messages.subList(first, keepFrom), compacted)) {
+            Log.debugf("CHAPPiE compacted %s from %d to %d messages", memoryId, messages.size(), compacted.size());
+        }
+    }
+
+    private String summarize(List<TokenCountedMessage> messages) {
+        StringBuilder transcript = new StringBuilder();
+        for (TokenCountedMessage m : messages) {
+            ChatMessage message = m.message();
+            if (message instanceof UserMessage um) {
+                String text = userText(um);
+                String earlier = extractSummary(text);
+                if (earlier != null) {
+                    transcript.append("Summary of earlier messages: ").append(earlier).append("\n\n");
+                }
+                transcript.append("Developer: ").append(StoreEndpoint.cleanUserText(text)).append("\n\n");
+            } else if (message instanceof AiMessage ai) {
+                if (ai.text() != null) transcript.append("CHAPPiE: ").append(ai.text()).append("\n\n");
+                if (ai.hasToolExecutionRequests()) {
+                    for (ToolExecutionRequest r : ai.toolExecutionRequests()) {
+                        transcript.append("CHAPPiE called tool ").append(r.name()).append(' ').append(r.arguments()).append("\n\n");
+                    }
+                }
+            } else if (message instanceof ToolExecutionResultMessage tr) {
+                String result = tr.text() == null ? "" : tr.text();
+                if (result.length() > MAX_TOOL_RESULT_CHARS) result = result.substring(0, MAX_TOOL_RESULT_CHARS) + " ...";
+                transcript.append("Tool ").append(tr.toolName()).append(" returned: ").append(result).append("\n\n");
+            }
+        }
+
+        String response = chappieService.getCompactionModel()
+                .chat(SystemMessage.from(PROMPT), UserMessage.from(transcript.toString()))
+                .aiMessage()
+                .text();
+        if (response == null) return null;
+        try {
+            JsonNode node = objectMapper.readTree(response);
+            if (node != null && node.hasNonNull("summary")) return node.get("summary").asText();
+        } catch (Exception e) {
+            // Not JSON; use the text as-is
+        }
+        return response;
+    }
+
+    private static UserMessage withSummary(UserMessage message, String summary) {
+        String block = SUMMARY_START + "\n" + summary + "\n" + SUMMARY_END + "\n\n";
+        if (message.hasSingleText()) {
+            return UserMessage.from(block + message.singleText());
+        }
+        List<Content> contents = new ArrayList<>(message.contents().size() + 1);
+        contents.add(TextContent.from(block));
+        contents.addAll(message.contents());
+        return UserMessage.from(contents);
+    }
+
+    private static String userText(UserMessage message) {
+        if (message.hasSingleText()) return message.singleText();
+        StringBuilder sb = new StringBuilder();
+        for (Content content : message.contents()) {
+            if (content instanceof TextContent tc) sb.append(tc.text()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String extractSummary(String text) {
+        int start = text.indexOf(SUMMARY_START);
+        int end = text.indexOf(SUMMARY_END);
+        if (start < 0 || end < start) return null;
+        return text.substring(start + SUMMARY_START.length(), end).strip();
+    }
+
+    /**
+     * @return the text without the summary block, if it has one
+     */
+    static String stripSummary(String text) {
+        int start = text.indexOf(SUMMARY_START);
+        int end = text.indexOf(SUMMARY_END);
+        if (start < 0 || end < start) return text;
+        return text.substring(0, start) + text.substring(end + SUMMARY_END.length());
+    }
+}
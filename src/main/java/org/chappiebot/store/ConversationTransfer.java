@@ -0,0 +1,199 @@
+package org.chappiebot.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Bulk export and import of conversations as NDJSON, using the PostgreSQL COPY protocol.
+ * Both directions stream between the HTTP body and the database, so memory use does not depend on the amount of data.
+ *
+ * Every line is one JSON object: either a stored (deduplicated) message, {"blob":hash,...}, or a whole conversation,
+ * {"memoryId":...,"messages":[...],"archived":[...]}. Messages are exported as stored (JSON, or base64 binary).
+ * Importing replaces conversations with the same memoryId, so importing the same file again changes nothing.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class ConversationTransfer {
+
+    // CSV with quote and delimiter characters that never occur in JSON, so COPY passes every line through as-is
+    private static final String RAW_LINES = "WITH (FORMAT csv, QUOTE e'\\x01', DELIMITER e'\\x02')";
+    private static final String STAGING_TABLE = "chappie_import";
+
+    private final DataSource ds;
+    private final String table;
+    private final String nameTable;
+    private final String summaryTable;
+    private final String archiveTable;
+    private final String blobTable;
+
+    public ConversationTransfer(DataSource ds, String table, String nameTable, String summaryTable, String archiveTable, String blobTable) {
+        this.ds = ds;
+        this.table = table;
+        this.nameTable = nameTable;
+        this.summaryTable = summaryTable;
+        this.archiveTable = archiveTable;
+        this.blobTable = blobTable;
+    }
+
+    /**
+     * Writes all stored messages and conversations to the stream, one JSON object per line.
+     * @return the number of lines written
+     */
+    public long exportTo(OutputStream out) throws IOException {
+        String blobs = """
+            SELECT json_build_object(
+                'blob', b.hash,
+                'json', b.message_json,
+                'bin', encode(b.message_bin, 'base64'))
+            FROM %s b
+            """.formatted(blobTable);
+        String conversations = """
+            SELECT json_build_object(
+                'memoryId', s.memory_id,
+                'niceName', s.nice_name,
+                'lastActivity', s.last_activity,
+                'liveText', s.live_text,
+                'archivedText', s.archived_text,
+                'messages', COALESCE((
+                    SELECT json_agg(json_build_object(
+                        'index', m.msg_index,
+                        'type', m.message_type,
+                        'createdAt', m.created_at,
+                        'json', m.message_json,
+                        'bin', encode(m.message_bin, 'base64'),
+                        'blob', m.blob_hash,
+                        'tokens', m.token_count) ORDER BY m.msg_index)
+                    FROM %s m WHERE m.memory_id = s.memory_id), '[]'::json),
+                'archived', COALESCE((
+                    SELECT json_agg(json_build_object(
+                        'index', a.msg_index,
+                        'type', a.message_type,
+                        'archivedAt', a.archived_at,
+                        'json', a.message_json,
+                        'bin', encode(a.message_bin, 'base64')) ORDER BY a.msg_index)
+                    FROM %s a WHERE a.memory_id = s.memory_id), '[]'::json))
+            FROM %s s
+            """.formatted(table, archiveTable, summaryTable);
+
+        try (Connection c = ds.getConnection()) {
+            // One snapshot for both, so every referenced blob is in the export
+            c.setAutoCommit(false);
+            c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                CopyManager copy = c.unwrap(PGConnection.class).getCopyAPI();
+                long lines = copy.copyOut("COPY (" + blobs + ") TO STDOUT " + RAW_LINES, out);
+                lines += copy.copyOut("COPY (" + conversations + ") TO STDOUT " + RAW_LINES, out);
+                c.commit();
+                return lines;
+            } catch (SQLException | IOException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to export conversations", e);
+        }
+    }
+
+    /**
+     * Reads lines as written by {@link #exportTo(OutputStream)} and stores them, all in one transaction.
+     * The lines are streamed into a temporary table and merged from there with a few set based statements.
+     * @return the number of conversations imported
+     */
+    public int importFrom(InputStream in) throws IOException {
+        String[] merge = {
+            // If a conversation is in the input more than once, the last one wins
+            """
+            DELETE FROM %s a USING %s b
+            WHERE a.doc->>'memoryId' = b.doc->>'memoryId' AND a.ctid < b.ctid
+            """.formatted(STAGING_TABLE, STAGING_TABLE),
+
+            // Stored messages are content addressed, so an existing one is the same
+            """
+            INSERT INTO %s (hash, message_json, message_bin)
+            SELECT doc->>'blob', NULLIF(doc->'json', 'null'::jsonb), decode(doc->>'bin', 'base64')
+            FROM %s WHERE doc->>'blob' IS NOT NULL
+            ON CONFLICT (hash) DO NOTHING
+            """.formatted(blobTable, STAGING_TABLE),
+
+            "DELETE FROM %s WHERE memory_id IN (SELECT doc->>'memoryId' FROM %s WHERE doc->>'memoryId' IS NOT NULL)".formatted(table, STAGING_TABLE),
+            "DELETE FROM %s WHERE memory_id IN (SELECT doc->>'memoryId' FROM %s WHERE doc->>'memoryId' IS NOT NULL)".formatted(archiveTable, STAGING_TABLE),
+
+            """
+            INSERT INTO %s (memory_id, msg_index, created_at, message_type, message_json, message_bin, blob_hash, token_count, last_modified)
+            SELECT i.doc->>'memoryId', (m->>'index')::int, COALESCE((m->>'createdAt')::timestamptz, now()), m->>'type',
+                   NULLIF(m->'json', 'null'::jsonb), decode(m->>'bin', 'base64'), m->>'blob', (m->>'tokens')::int, now()
+            FROM %s i, jsonb_array_elements(i.doc->'messages') m
+            WHERE i.doc->>'memoryId' IS NOT NULL
+            """.formatted(table, STAGING_TABLE),
+
+            """
+            INSERT INTO %s (memory_id, msg_index, message_type, message_json, message_bin, archived_at)
+            SELECT i.doc->>'memoryId', (a->>'index')::int, a->>'type',
+                   NULLIF(a->'json', 'null'::jsonb), decode(a->>'bin', 'base64'), COALESCE((a->>'archivedAt')::timestamptz, now())
+            FROM %s i, jsonb_array_elements(i.doc->'archived') a
+            WHERE i.doc->>'memoryId' IS NOT NULL
+            """.formatted(archiveTable, STAGING_TABLE),
+
+            // A name that is taken by another conversation is not imported
+            """
+            INSERT INTO %s (memory_id, nice_name)
+            SELECT doc->>'memoryId', doc->>'niceName'
+            FROM %s WHERE doc->>'memoryId' IS NOT NULL AND COALESCE(doc->>'niceName', '') <> ''
+            ON CONFLICT DO NOTHING
+            """.formatted(nameTable, STAGING_TABLE),
+
+            """
+            INSERT INTO %s (memory_id, nice_name, last_activity, message_count, live_text, archived_text)
+            SELECT i.doc->>'memoryId',
+                   COALESCE(n.nice_name, ''),
+                   COALESCE((i.doc->>'lastActivity')::timestamptz, now()),
+                   jsonb_array_length(i.doc->'messages'),
+                   i.doc->>'liveText',
+                   i.doc->>'archivedText'
+            FROM %s i
+            LEFT JOIN %s n ON n.memory_id = i.doc->>'memoryId'
+            WHERE i.doc->>'memoryId' IS NOT NULL
+            ON CONFLICT (memory_id) DO UPDATE
+              SET nice_name = EXCLUDED.nice_name,
+                  last_activity = EXCLUDED.last_activity,
+                  message_count = EXCLUDED.message_count,
+                  live_text = EXCLUDED.live_text,
+                  archived_text = EXCLUDED.archived_text
+            """.formatted(summaryTable, STAGING_TABLE, nameTable)
+        };
+
+        try (Connection c = ds.getConnection(); Statement st = c.createStatement()) {
+            c.setAutoCommit(false);
+            try {
+                st.execute("CREATE TEMP TABLE " + STAGING_TABLE + " (doc JSONB) ON COMMIT DROP");
+                CopyManager copy = c.unwrap(PGConnection.class).getCopyAPI();
+                copy.copyIn("COPY " + STAGING_TABLE + " (doc) FROM STDIN " + RAW_LINES, in);
+
+                int conversations;
+                try (var rs = st.executeQuery("SELECT COUNT(*) FROM " + STAGING_TABLE + " WHERE doc->>'memoryId' IS NOT NULL")) {
+                    rs.next();
+                    conversations = rs.getInt(1);
+                }
+                for (String sql : merge) st.execute(sql);
+                c.commit();
+                return conversations;
+            } catch (SQLException | IOException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to import conversations", e);
+        }
+    }
+}
@@ -1,16 +1,24 @@
 package org.chappiebot.store;
 
+import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
-import dev.langchain4j.data.message.ChatMessageDeserializer;
-import dev.langchain4j.data.message.ChatMessageSerializer;
+import dev.langchain4j.data.message.ChatMessageType;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import javax.sql.DataSource;
 
 /**
@@ -19,14 +27,32 @@ import javax.sql.DataSource;
  */
 public class JdbcChatMemoryStore implements ChatMemoryStore {
     
+    private static final int STREAM_FETCH_SIZE = 500;
+    private static final int CHAT_FETCH_SIZE = 50;
+    private static final String FOREIGN_KEY_VIOLATION = "23503";
+    // Text search configuration for the conversation text (the search_vector column is built with it)
+    static final String SEARCH_CONFIG = "english";
+    // Upper bounds for the searchable text kept per conversation, well below the tsvector limit
+    private static final int MAX_LIVE_TEXT = 100_000;
+    private static final int MAX_ARCHIVED_TEXT = 200_000;
+    
     private final DataSource ds;
     private final String table;
     private final String nameTable;
+    private final String summaryTable;
+    private final String archiveTable;
+    private final MessageCodec codec;
+    private final MessageBlobs blobs;
+    private final TokenEstimator tokenEstimator = new TokenEstimator();
             
-    public JdbcChatMemoryStore(DataSource ds, String table, String nameTable) {
+    public JdbcChatMemoryStore(DataSource ds, String table, String nameTable, String summaryTable, String archiveTable, MessageCodec codec, MessageBlobs blobs) {
         this.ds = ds;
         this.table = table;
         this.nameTable = nameTable;
+        this.summaryTable = summaryTable;
+        this.archiveTable = archiveTable;
+        this.codec = codec;
+        this.blobs = blobs;
     }
     
     public void setNiceName(String memoryId, String niceName) {
@@ -37,11 +63,28 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
         String sql = "INSERT INTO " + nameTable + " (memory_id, nice_name) " +
                      "VALUES (?, ?) " +
                      "ON CONFLICT (memory_id) DO UPDATE SET nice_name = EXCLUDED.nice_name";
-        try (Connection c = ds.getConnection();
-             PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setString(1, memoryId);
-            ps.setString(2, clean);
-            ps.executeUpdate();
+        String summarySql = "UPDATE " + summaryTable + " SET nice_name = ? WHERE memory_id = ?";
+        
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = c.prepareStatement(sql)) {
+                    ps.setString(1, memoryId);
+                    ps.setString(2, clean);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = c.prepareStatement(summarySql)) {
+                    ps.setString(1, clean);
+                    ps.setString(2, memoryId);
+                    ps.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
         } catch (SQLException e) {
             throw new RuntimeException("Failed to set nice name for " + memoryId, e);
         }
@@ -63,10 +106,26 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
     
     public void deleteNiceName(String memoryId) {
         String sql = "DELETE FROM " + nameTable + " WHERE memory_id = ?";
-        try (Connection c = ds.getConnection();
-             PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setString(1, memoryId);
-            ps.executeUpdate();
+        String summarySql = "UPDATE " + summaryTable + " SET nice_name = '' WHERE memory_id = ?";
+        
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = c.prepareStatement(sql)) {
+                    ps.setString(1, memoryId);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = c.prepareStatement(summarySql)) {
+                    ps.setString(1, memoryId);
+                    ps.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
         } catch (SQLException e) {
             throw new RuntimeException("Failed to delete nice name for " + memoryId, e);
         }
@@ -74,22 +133,16 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
 
     public List<MemorySummary> listSummaries(String nameFilterILike, int limit, int offset) {
         String base = """
-            SELECT m.memory_id,
-                   COALESCE(n.nice_name, '') AS nice_name,
-                   MAX(GREATEST(m.last_modified, m.created_at)) AS last_activity,
-                   COUNT(*) AS message_count
-            FROM %s m
-            LEFT JOIN %s n ON n.memory_id = m.memory_id
-            WHERE m.memory_id IS NOT NULL
-            """.formatted(table, nameTable);
+            SELECT memory_id, nice_name, last_activity, message_count
+            FROM %s
+            """.formatted(summaryTable);
 
         String filter = (nameFilterILike != null && !nameFilterILike.isBlank())
-                ? " AND (n.nice_name ILIKE ? OR m.memory_id ILIKE ?) "
+                ? " WHERE (nice_name ILIKE ? OR memory_id ILIKE ?) "
                 : "";
 
         String tail = """
-            GROUP BY m.memory_id, n.nice_name
-            ORDER BY last_activity DESC, m.memory_id ASC
+            ORDER BY last_activity DESC, memory_id ASC
             LIMIT ? OFFSET ?
             """;
 
@@ -110,12 +163,57 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
 
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    out.add(new MemorySummary(
-                        rs.getString("memory_id"),
-                        rs.getString("nice_name"),
-                        rs.getObject("last_activity", java.time.OffsetDateTime.class),
-                        rs.getInt("message_count")
-                    ));
+                    out.add(toSummary(rs));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to list memory summaries", e);
+        }
+        return out;
+    }
+    
+    /**
+     * Keyset variant of {@link #listSummaries(String, int, int)}: the cost of a page does not depend on how deep it is.
+     * @param after the last row of the previous page, or null for the first page
+     */
+    public List<MemorySummary> listSummaries(String nameFilterILike, int limit, PageToken after) {
+        List<String> where = new ArrayList<>();
+        boolean filtered = nameFilterILike != null && !nameFilterILike.isBlank();
+        if (filtered) {
+            where.add("(nice_name ILIKE ? OR memory_id ILIKE ?)");
+        }
+        if (after != null) {
+            where.add("(last_activity < ? OR (last_activity = ? AND memory_id > ?))");
+        }
+        
+        String sql = """
+            SELECT memory_id, nice_name, last_activity, message_count
+            FROM %s
+            %s
+            ORDER BY last_activity DESC, memory_id ASC
+            LIMIT ?
+            """.formatted(summaryTable, where.isEmpty() ? "" : "WHERE " + String.join(" AND ", where));
+
+        List<MemorySummary> out = new ArrayList<>();
+        try (Connection c = ds.getConnection();
+             PreparedStatement ps = c.prepareStatement(sql)) {
+
+            int i = 1;
+            if (filtered) {
+                String like = "%" + nameFilterILike.strip() + "%";
+                ps.setString(i++, like);
+                ps.setString(i++, like);
+            }
+            if (after != null) {
+                ps.setObject(i++, after.lastActivity());
+                ps.setObject(i++, after.lastActivity());
+                ps.setString(i++, after.memoryId());
+            }
+            ps.setInt(i, limit <= 0 ? 50 : limit);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(toSummary(rs));
                 }
             }
         } catch (SQLException e) {
@@ -124,13 +222,40 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
         return out;
     }
     
+    /**
+     * Walks all memoryIds (most recent first) with a server-side cursor, so the full list is never held in memory.
+     */
+    public void streamMemoryIds(Consumer<String> consumer) {
+        String sql =
+            "SELECT memory_id " +
+            "FROM " + summaryTable + " " +
+            "ORDER BY last_activity DESC, memory_id ASC";
+
+        try (Connection c = ds.getConnection()) {
+            // The PostgreSQL driver only honours the fetch size inside a transaction
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                ps.setFetchSize(STREAM_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) consumer.accept(rs.getString(1));
+                }
+                c.commit();
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to stream memory IDs", e);
+        }
+    }
+    
     public List<String> getAllMemoryIds() {
         String sql =
             "SELECT memory_id " +
-            "FROM " + table + " " +
-            "WHERE memory_id IS NOT NULL " +
-            "GROUP BY memory_id " +
-            "ORDER BY MAX(GREATEST(last_modified, created_at)) DESC, memory_id ASC";
+            "FROM " + summaryTable + " " +
+            "ORDER BY last_activity DESC, memory_id ASC";
 
         List<String> ids = new ArrayList<>();
         try (Connection c = ds.getConnection();
@@ -143,118 +268,87 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
         return ids;
     }
     
-    public Map<MemorySummary, List<ChatMessage>> getMostRecentChat(){
-        String topSql = """
-            SELECT m.memory_id,
-                   COALESCE(n.nice_name, '') AS nice_name,
-                   MAX(GREATEST(m.last_modified, m.created_at)) AS last_activity,
-                   COUNT(*) AS message_count
-            FROM %s m
-            LEFT JOIN %s n ON n.memory_id = m.memory_id
-            WHERE m.memory_id IS NOT NULL
-            GROUP BY m.memory_id, n.nice_name
-            ORDER BY last_activity DESC, m.memory_id ASC
-            LIMIT 1
-            """.formatted(table, nameTable);
-
+    public Optional<ChatCursor> openMostRecentChat(){
+        String sql = "SELECT memory_id, nice_name, last_activity, message_count FROM " + summaryTable
+                + " ORDER BY last_activity DESC, memory_id ASC LIMIT 1";
+        return openChatCursor(sql, null);
+    }
+    
+    /**
+     * Opens the summary and the (non-system) messages of a conversation.
+     * Archived (compacted) messages come first, followed by the current ones.
+     * Only the summary is read here; the messages are read with one query, and are not deserialized, while the cursor is consumed.
+     */
+    public Optional<ChatCursor> openChat(String memoryId) {
+        String sql = "SELECT memory_id, nice_name, last_activity, message_count FROM " + summaryTable + " WHERE memory_id = ?";
+        return openChatCursor(sql, memoryId);
+    }
+    
+    private Optional<ChatCursor> openChatCursor(String sql, String memoryId) {
         try (Connection c = ds.getConnection();
-             PreparedStatement ps = c.prepareStatement(topSql);
-             ResultSet rs = ps.executeQuery()) {
-
-            if (!rs.next()) {
-                return java.util.Collections.emptyMap();
-            }
-
-            String memoryId = rs.getString("memory_id");
-            String niceName = rs.getString("nice_name");
-            java.time.OffsetDateTime lastActivity =
-                    rs.getObject("last_activity", java.time.OffsetDateTime.class);
-            int messageCount = rs.getInt("message_count");
-
-            MemorySummary summary = new MemorySummary(memoryId, niceName, lastActivity, messageCount);
-
-            String msgSql = "SELECT message_json FROM " + table +
-                            " WHERE memory_id = ? ORDER BY msg_index ASC";
-
-            List<ChatMessage> messages = new ArrayList<>();
-            try (PreparedStatement pm = c.prepareStatement(msgSql)) {
-                pm.setString(1, memoryId);
-                try (ResultSet rm = pm.executeQuery()) {
-                    while (rm.next()) {
-                        messages.add(ChatMessageDeserializer.messageFromJson(rm.getString(1)));
-                    }
-                }
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            if (memoryId != null) ps.setString(1, memoryId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return Optional.empty();
+                MemorySummary summary = toSummary(rs);
+                return Optional.of(new ChatCursor(summary, consumer -> streamChatMessages(summary.memoryId(), consumer)));
             }
-
-            return java.util.Collections.singletonMap(summary, messages);
-
         } catch (SQLException e) {
-            throw new RuntimeException("Failed to load most recent chat", e);
+            throw new RuntimeException("Failed to load chat " + (memoryId == null ? "(most recent)" : memoryId), e);
         }
     }
     
-    public Map<MemorySummary, List<ChatMessage>> getChat(String memoryId) {
-        String summarySql = """
-            SELECT m.memory_id,
-                   COALESCE(n.nice_name, '') AS nice_name,
-                   MAX(GREATEST(m.last_modified, m.created_at)) AS last_activity,
-                   COUNT(*) AS message_count
-            FROM %s m
-            LEFT JOIN %s n ON n.memory_id = m.memory_id
-            WHERE m.memory_id = ?
-            GROUP BY m.memory_id, n.nice_name
-            """.formatted(table, nameTable);
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement ps = c.prepareStatement(summarySql)) {
-
-            ps.setString(1, memoryId);
-
-            try (ResultSet rs = ps.executeQuery()) {
-                if (!rs.next()) {
-                    return java.util.Collections.emptyMap();
-                }
-
-                String id = rs.getString("memory_id");
-                String niceName = rs.getString("nice_name");
-                java.time.OffsetDateTime lastActivity =
-                        rs.getObject("last_activity", java.time.OffsetDateTime.class);
-                int messageCount = rs.getInt("message_count");
-
-                MemorySummary summary = new MemorySummary(id, niceName, lastActivity, messageCount);
-
-                // Load the full message list for that memory, in order
-                String msgSql = "SELECT message_json FROM " + table +
-                                " WHERE memory_id = ? ORDER BY msg_index ASC";
-
-                List<ChatMessage> messages = new ArrayList<>();
-                try (PreparedStatement pm = c.prepareStatement(msgSql)) {
-                    pm.setString(1, id);
-                    try (ResultSet rm = pm.executeQuery()) {
-                        while (rm.next()) {
-                            messages.add(ChatMessageDeserializer.messageFromJson(rm.getString(1)));
-                        }
+    /**
+     * Walks the (non-system) messages of a conversation in order with one forward only query and a server-side cursor,
+     * in a read-only transaction that ends when the walk does
+     */
+    private void streamChatMessages(String memoryId, ChatCursor.MessageConsumer consumer) throws IOException {
+        String sql = """
+            SELECT message_json::text AS message_json, message_bin, message_type
+            FROM (SELECT 0 AS part, msg_index, message_json, message_bin, message_type FROM %s WHERE memory_id = ?
+                  UNION ALL
+                  SELECT 1 AS part, msg_index, message_json, message_bin, message_type FROM %s WHERE memory_id = ?) m
+            WHERE message_type <> 'SYSTEM'
+            ORDER BY part ASC, msg_index ASC
+            """.formatted(archiveTable, table);
+        
+        try (Connection c = ds.getConnection()) {
+            // The PostgreSQL driver only honours the fetch size inside a transaction
+            c.setAutoCommit(false);
+            c.setReadOnly(true);
+            try (PreparedStatement ps = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ps.setFetchSize(CHAT_FETCH_SIZE);
+                ps.setString(1, memoryId);
+                ps.setString(2, memoryId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String json = codec.toJson(rs.getString("message_json"), rs.getBytes("message_bin"));
+                        if (json != null) consumer.accept(ChatMessageType.valueOf(rs.getString("message_type")), json);
                     }
                 }
-
-                return java.util.Collections.singletonMap(summary, messages);
+                c.commit();
+            } catch (SQLException | IOException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setReadOnly(false);
+                c.setAutoCommit(true);
             }
         } catch (SQLException e) {
-            throw new RuntimeException("Failed to load chat for " + memoryId, e);
+            throw new RuntimeException("Failed to read chat " + memoryId, e);
         }
     }
     
     @Override
     public List<ChatMessage> getMessages(Object memoryId) {
-        String sql = "SELECT message_json FROM " + table + " WHERE memory_id = ? ORDER BY msg_index ASC";
+        String sql = "SELECT message_json::text, message_bin, blob_hash FROM " + table + " WHERE memory_id = ? ORDER BY msg_index ASC";
         List<ChatMessage> out = new ArrayList<>();
         try (Connection c = ds.getConnection();
             PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setString(1, String.valueOf(memoryId));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    String json = rs.getString(1);
-                    out.add(ChatMessageDeserializer.messageFromJson(json));
+                    out.add(readMessage(c, rs));
                 }
             }
         } catch (SQLException e) {
@@ -263,9 +357,39 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
         return out;
     }
     
+    /**
+     * Like {@link #getMessages(Object)}, with the token count stored for each message.
+     * Rows written before counts were stored are estimated here.
+     */
+    public List<TokenCountedMessage> getTokenCountedMessages(String memoryId) {
+        String sql = "SELECT message_json::text, message_bin, blob_hash, token_count FROM " + table + " WHERE memory_id = ? ORDER BY msg_index ASC";
+        List<TokenCountedMessage> out = new ArrayList<>();
+        try (Connection c = ds.getConnection();
+            PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, memoryId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ChatMessage message = readMessage(c, rs);
+                    int tokens = rs.getInt(4);
+                    out.add(new TokenCountedMessage(message, rs.wasNull() ? tokenEstimator.estimateTokenCountInMessage(message) : tokens));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load chat memory for " + memoryId, e);
+        }
+        return out;
+    }
+    
+    private ChatMessage readMessage(Connection c, ResultSet rs) throws SQLException {
+        String hash = rs.getString(3);
+        return hash != null ? blobs.load(c, hash) : codec.decode(rs.getString(1), rs.getBytes(2));
+    }
+    
     public void deleteConversation(String memoryId) {
         String delMsgs = "DELETE FROM " + table + " WHERE memory_id = ?";
+        String delArchive = "DELETE FROM " + archiveTable + " WHERE memory_id = ?";
         String delName = "DELETE FROM " + nameTable + " WHERE memory_id = ?";
+        String delSummary = "DELETE FROM " + summaryTable + " WHERE memory_id = ?";
 
         try (Connection c = ds.getConnection()) {
             c.setAutoCommit(false);
@@ -274,11 +398,21 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
                     pm.setString(1, memoryId);
                     pm.executeUpdate();
                 }
+                
+                try (PreparedStatement pa = c.prepareStatement(delArchive)) {
+                    pa.setString(1, memoryId);
+                    pa.executeUpdate();
+                }
 
                 try (PreparedStatement pn = c.prepareStatement(delName)) {
                     pn.setString(1, memoryId);
                     pn.executeUpdate();
                 }
+                
+                try (PreparedStatement ps = c.prepareStatement(delSummary)) {
+                    ps.setString(1, memoryId);
+                    ps.executeUpdate();
+                }
 
                 c.commit();
             } catch (SQLException e) {
@@ -294,25 +428,158 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
     
     @Override
     public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        List<TokenCountedMessage> counted = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            counted.add(new TokenCountedMessage(message, tokenEstimator.estimateTokenCountInMessage(message)));
+        }
+        updateTokenCountedMessages(String.valueOf(memoryId), counted);
+    }
+    
+    /**
+     * Like {@link #updateMessages(Object, List)}, with token counts that are already known, so nothing is estimated again.
+     */
+    public void updateTokenCountedMessages(String memoryId, List<TokenCountedMessage> messages) {
+        try {
+            writeMessages(memoryId, messages);
+        } catch (SQLException e) {
+            if (!isForeignKeyViolation(e)) {
+                throw new RuntimeException("Failed to update chat memory for " + memoryId, e);
+            }
+            // A stored message we believed to exist was cleaned up in the meantime; store it again
+            blobs.forget();
+            try {
+                writeMessages(memoryId, messages);
+            } catch (SQLException retry) {
+                throw new RuntimeException("Failed to update chat memory for " + memoryId, retry);
+            }
+        }
+    }
+    
+    private static boolean isForeignKeyViolation(SQLException e) {
+        // Batch failures carry the actual cause as the next exception
+        for (SQLException x = e; x != null; x = x.getNextException()) {
+            if (FOREIGN_KEY_VIOLATION.equals(x.getSQLState())) return true;
+        }
+        return false;
+    }
+    
+    private void writeMessages(String memoryId, List<TokenCountedMessage> messages) throws SQLException {
+        Map<String, ChatMessage> stored = new HashMap<>();
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                lockConversation(c, memoryId);
+                replaceMessages(c, memoryId, messages, stored);
+                updateSummary(c, memoryId, messages.size(), searchText(messages, MAX_LIVE_TEXT));
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+        stored.forEach(blobs::remember);
+    }
+    
+    /**
+     * Serializes writers of the same conversation (until the transaction ends), 
+     * so a compaction can not interleave with a turn that rewrites the messages.
+     */
+    private static void lockConversation(Connection c, String memoryId) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT pg_advisory_xact_lock(hashtext(?))")) {
+            ps.setString(1, memoryId);
+            ps.execute();
+        }
+    }
+    
+    private void replaceMessages(Connection c, String memoryId, List<TokenCountedMessage> messages, Map<String, ChatMessage> stored) throws SQLException {
         // We rewrite the full set; simpler and correct for windowed memory.
         String deleteSql = "DELETE FROM " + table + " WHERE memory_id = ?";
-        String insertSql = "INSERT INTO " + table + " (memory_id, msg_index, message_json, last_modified) VALUES (?, ?, ?::jsonb, now())";
+        String insertSql = "INSERT INTO " + table + " (memory_id, msg_index, message_type, message_json, message_bin, blob_hash, token_count, last_modified) VALUES (?, ?, ?, ?::jsonb, ?, ?, ?, now())";
 
+        try (PreparedStatement del = c.prepareStatement(deleteSql)) {
+            del.setString(1, memoryId);
+            del.executeUpdate();
+        }
+        try (PreparedStatement ins = c.prepareStatement(insertSql)) {
+            for (int i = 0; i < messages.size(); i++) {
+                ChatMessage message = messages.get(i).message();
+                MessageCodec.Encoded encoded = codec.encode(message);
+                String hash = null;
+                if (blobs.accepts(message, encoded)) {
+                    hash = blobs.store(c, encoded);
+                    stored.put(hash, message);
+                    encoded = new MessageCodec.Encoded(null, null);
+                }
+                ins.setString(1, memoryId);
+                ins.setInt(2, i);
+                ins.setString(3, message.type().name());
+                ins.setString(4, encoded.json());
+                ins.setBytes(5, encoded.binary());
+                ins.setString(6, hash);
+                ins.setInt(7, messages.get(i).tokens());
+                ins.addBatch();
+            }
+            ins.executeBatch();
+        }
+    }
+    
+    /**
+     * Replaces the start of a conversation with a summary. The (non-system) messages before keepFrom are moved
+     * to the archive table, and the messages are rewritten as given, without counting as activity.
+     * Nothing is done if the conversation was written to after it was read for compaction.
+     * @param readAt the last activity of the conversation when its messages were read
+     * @param keepFrom the index of the first message that was not summarized
+     * @param archived the messages that were summarized, so they stay searchable
+     * @param messages the new messages, including the summary
+     * @return true if the conversation was compacted
+     */
+    public boolean compact(String memoryId, OffsetDateTime readAt, int keepFrom, List<TokenCountedMessage> archived, List<TokenCountedMessage> messages) {
+        String activitySql = "SELECT last_activity FROM " + summaryTable + " WHERE memory_id = ?";
+        String archiveSql = """
+            INSERT INTO %s (memory_id, msg_index, message_type, message_json, message_bin)
+            SELECT m.memory_id,
+                   (SELECT COALESCE(MAX(a.msg_index), -1) FROM %s a WHERE a.memory_id = ?) + ROW_NUMBER() OVER (ORDER BY m.msg_index),
+                   m.message_type, m.message_json, m.message_bin
+            FROM %s m
+            WHERE m.memory_id = ? AND m.msg_index < ? AND m.message_type <> 'SYSTEM'
+            """.formatted(archiveTable, archiveTable, table);
+        String countSql = """
+            UPDATE %s
+            SET message_count = ?,
+                live_text = ?,
+                archived_text = right(COALESCE(archived_text, '') || E'\\n' || ?, %d)
+            WHERE memory_id = ?
+            """.formatted(summaryTable, MAX_ARCHIVED_TEXT);
+        
+        Map<String, ChatMessage> stored = new HashMap<>();
         try (Connection c = ds.getConnection()) {
             c.setAutoCommit(false);
             try {
-                try (PreparedStatement del = c.prepareStatement(deleteSql)) {
-                    del.setString(1, String.valueOf(memoryId));
-                    del.executeUpdate();
-                }
-                try (PreparedStatement ins = c.prepareStatement(insertSql)) {
-                    for (int i = 0; i < messages.size(); i++) {
-                        ins.setString(1, String.valueOf(memoryId));
-                        ins.setInt(2, i);
-                        ins.setString(3, ChatMessageSerializer.messageToJson(messages.get(i)));
-                        ins.addBatch();
+                lockConversation(c, memoryId);
+                try (PreparedStatement ps = c.prepareStatement(activitySql)) {
+                    ps.setString(1, memoryId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next() || !readAt.isEqual(rs.getObject(1, OffsetDateTime.class))) {
+                            c.rollback();
+                            return false;
+                        }
                     }
-                    ins.executeBatch();
+                }
+                try (PreparedStatement ps = c.prepareStatement(archiveSql)) {
+                    ps.setString(1, memoryId);
+                    ps.setString(2, memoryId);
+                    ps.setInt(3, keepFrom);
+                    ps.executeUpdate();
+                }
+                replaceMessages(c, memoryId, messages, stored);
+                try (PreparedStatement ps = c.prepareStatement(countSql)) {
+                    ps.setInt(1, messages.size());
+                    ps.setString(2, searchText(messages, MAX_LIVE_TEXT));
+                    ps.setString(3, searchText(archived, MAX_ARCHIVED_TEXT));
+                    ps.setString(4, memoryId);
+                    ps.executeUpdate();
                 }
                 c.commit();
             } catch (SQLException e) {
@@ -322,19 +589,319 @@ public class JdbcChatMemoryStore implements ChatMemoryStore {
                 c.setAutoCommit(true);
             }
         } catch (SQLException e) {
-            throw new RuntimeException("Failed to update chat memory for " + memoryId, e);
+            throw new RuntimeException("Failed to compact chat memory for " + memoryId, e);
+        }
+        stored.forEach(blobs::remember);
+        return true;
+    }
+    
+    /**
+     * Finds conversations by their content (and nice name), best match first.
+     * Query syntax is that of a web search: words, "quoted phrases", OR and -excluded.
+     * Only the rows of the requested page get a snippet, so the cost is mostly the index lookup.
+     * @param after the last hit of the previous page, or null for the first page
+     */
+    public List<SearchHit> search(String query, int limit, SearchPageToken after) {
+        String sql = """
+            SELECT r.memory_id, r.nice_name, r.last_activity, r.message_count, r.rank,
+                   ts_headline('%1$s', COALESCE(r.archived_text, '') || ' ' || COALESCE(r.live_text, ''), r.q,
+                               'MaxFragments=2, MaxWords=25, MinWords=8, StartSel=**, StopSel=**') AS snippet
+            FROM (
+                SELECT s.memory_id, s.nice_name, s.last_activity, s.message_count, s.archived_text, s.live_text, q.q,
+                       ts_rank_cd(s.search_vector, q.q) AS rank
+                FROM %2$s s, websearch_to_tsquery('%1$s', ?) AS q(q)
+                WHERE s.search_vector @@ q.q
+            ) r
+            %3$s
+            ORDER BY r.rank DESC, r.memory_id ASC
+            LIMIT ?
+            """.formatted(SEARCH_CONFIG, summaryTable, after == null ? "" : "WHERE (r.rank < ? OR (r.rank = ? AND r.memory_id > ?))");
+        
+        List<SearchHit> out = new ArrayList<>();
+        try (Connection c = ds.getConnection();
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            int i = 1;
+            ps.setString(i++, query);
+            if (after != null) {
+                ps.setFloat(i++, after.rank());
+                ps.setFloat(i++, after.rank());
+                ps.setString(i++, after.memoryId());
+            }
+            ps.setInt(i, limit <= 0 ? 50 : limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new SearchHit(
+                        rs.getString("memory_id"),
+                        rs.getString("nice_name"),
+                        rs.getObject("last_activity", OffsetDateTime.class),
+                        rs.getInt("message_count"),
+                        rs.getFloat("rank"),
+                        rs.getString("snippet")));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to search conversations", e);
+        }
+        return out;
+    }
+    
+    /**
+     * Fills the searchable text of one batch of conversations that were stored before search existed.
+     * @return the number of conversations indexed, 0 when done
+     */
+    public int indexForSearch(int batchSize) {
+        String selectSql = """
+            SELECT memory_id FROM %s
+            WHERE live_text IS NULL
+            LIMIT ?
+            FOR UPDATE SKIP LOCKED
+            """.formatted(summaryTable);
+        String updateSql = "UPDATE " + summaryTable + " SET live_text = ? WHERE memory_id = ?";
+        String messagesSql = "SELECT message_json::text, message_bin, blob_hash FROM " + table + " WHERE memory_id = ? AND message_type <> 'SYSTEM' ORDER BY msg_index ASC";
+        
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try (PreparedStatement sel = c.prepareStatement(selectSql);
+                 PreparedStatement msgs = c.prepareStatement(messagesSql);
+                 PreparedStatement upd = c.prepareStatement(updateSql)) {
+                List<String> ids = new ArrayList<>();
+                sel.setInt(1, batchSize);
+                try (ResultSet rs = sel.executeQuery()) {
+                    while (rs.next()) ids.add(rs.getString(1));
+                }
+                for (String id : ids) {
+                    List<TokenCountedMessage> messages = new ArrayList<>();
+                    msgs.setString(1, id);
+                    try (ResultSet rs = msgs.executeQuery()) {
+                        while (rs.next()) messages.add(new TokenCountedMessage(readMessage(c, rs), 0));
+                    }
+                    upd.setString(1, searchText(messages, MAX_LIVE_TEXT));
+                    upd.setString(2, id);
+                    upd.addBatch();
+                }
+                if (!ids.isEmpty()) upd.executeBatch();
+                c.commit();
+                return ids.size();
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to index conversations for search", e);
         }
     }
+    
+    public Optional<MemorySummary> getSummary(String memoryId) {
+        String sql = "SELECT memory_id, nice_name, last_activity, message_count FROM " + summaryTable + " WHERE memory_id = ?";
+        try (Connection c = ds.getConnection();
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, memoryId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return Optional.of(toSummary(rs));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load summary for " + memoryId, e);
+        }
+        return Optional.empty();
+    }
 
     @Override
     public void deleteMessages(Object memoryId) {
-        String sql = "DELETE FROM " + table + " WHERE memory_id = ?";
-        try (Connection c = ds.getConnection();
-             PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setString(1, String.valueOf(memoryId));
-            ps.executeUpdate();
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                for (String t : List.of(table, archiveTable)) {
+                    try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + t + " WHERE memory_id = ?")) {
+                        ps.setString(1, String.valueOf(memoryId));
+                        ps.executeUpdate();
+                    }
+                }
+                updateSummary(c, String.valueOf(memoryId), 0, null);
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
         } catch (SQLException e) {
             throw new RuntimeException("Failed to delete chat memory for " + memoryId, e);
         }
     }
+    
+    /**
+     * Rewrites one batch of rows that are not yet in the configured codec.
+     * Rows are locked with SKIP LOCKED, so conversations that are being written to are simply picked up later.
+     * @return the number of rows migrated, 0 when done
+     */
+    public int migrateCodec(int batchSize) {
+        String pending = (codec.format() == MessageCodec.Format.SMILE ? "message_bin IS NULL" : "message_json IS NULL")
+                + " AND blob_hash IS NULL";
+        String selectSql = """
+            SELECT memory_id, msg_index, message_json::text, message_bin
+            FROM %s
+            WHERE %s
+            LIMIT ?
+            FOR UPDATE SKIP LOCKED
+            """.formatted(table, pending);
+        String updateSql = "UPDATE " + table + " SET message_json = ?::jsonb, message_bin = ? WHERE memory_id = ? AND msg_index = ?";
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try (PreparedStatement sel = c.prepareStatement(selectSql);
+                 PreparedStatement upd = c.prepareStatement(updateSql)) {
+                sel.setInt(1, batchSize);
+                int n = 0;
+                try (ResultSet rs = sel.executeQuery()) {
+                    while (rs.next()) {
+                        ChatMessage message = codec.decode(rs.getString(3), rs.getBytes(4));
+                        MessageCodec.Encoded encoded = codec.encode(message);
+                        upd.setString(1, encoded.json());
+                        upd.setBytes(2, encoded.binary());
+                        upd.setString(3, rs.getString(1));
+                        upd.setInt(4, rs.getInt(2));
+                        upd.addBatch();
+                        n++;
+                    }
+                }
+                if (n > 0) upd.executeBatch();
+                c.commit();
+                return n;
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to migrate chat messages to " + codec.format(), e);
+        }
+    }
+    
+    /**
+     * Deletes one batch of conversations (messages, archived messages, name and summary) that have not been active since the cutoff.
+     * Each batch is its own short transaction, and conversations that are being written to are skipped.
+     * @return the number of conversations deleted, 0 when done
+     */
+    public int deleteConversationsBefore(OffsetDateTime cutoff, int batchSize) {
+        String selectSql = """
+            SELECT memory_id FROM %s
+            WHERE last_activity < ?
+            ORDER BY last_activity ASC
+            LIMIT ?
+            FOR UPDATE SKIP LOCKED
+            """.formatted(summaryTable);
+        
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                List<String> ids = new ArrayList<>();
+                try (PreparedStatement ps = c.prepareStatement(selectSql)) {
+                    ps.setObject(1, cutoff);
+                    ps.setInt(2, batchSize);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) ids.add(rs.getString(1));
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    java.sql.Array idArray = c.createArrayOf("varchar", ids.toArray());
+                    for (String t : List.of(table, archiveTable, nameTable, summaryTable)) {
+                        try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + t + " WHERE memory_id = ANY(?)")) {
+                            ps.setArray(1, idArray);
+                            ps.executeUpdate();
+                        }
+                    }
+                }
+                c.commit();
+                return ids.size();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to delete conversations before " + cutoff, e);
+        }
+    }
+    
+    /**
+     * Deletes one batch of stored (deduplicated) messages that no conversation references anymore.
+     * @return the number deleted, 0 when done
+     */
+    public int deleteUnreferencedBlobs(int batchSize) {
+        try (Connection c = ds.getConnection()) {
+            return blobs.deleteUnreferenced(c, table, batchSize);
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to delete unreferenced messages", e);
+        }
+    }
+    
+    /**
+     * Keeps the per-conversation summary row in step with the messages.
+     * Must be called on the same connection (and transaction) as the message write.
+     */
+    private void updateSummary(Connection c, String memoryId, int messageCount, String liveText) throws SQLException {
+        if (messageCount == 0) {
+            try (PreparedStatement ps = c.prepareStatement("DELETE FROM " + summaryTable + " WHERE memory_id = ?")) {
+                ps.setString(1, memoryId);
+                ps.executeUpdate();
+            }
+            return;
+        }
+        
+        String sql = """
+            INSERT INTO %s (memory_id, nice_name, last_activity, message_count, live_text)
+            VALUES (?, COALESCE((SELECT nice_name FROM %s WHERE memory_id = ?), ''), now(), ?, ?)
+            ON CONFLICT (memory_id) DO UPDATE
+              SET last_activity = EXCLUDED.last_activity,
+                  message_count = EXCLUDED.message_count,
+                  live_text = EXCLUDED.live_text
+            """.formatted(summaryTable, nameTable);
+        
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, memoryId);
+            ps.setString(2, memoryId);
+            ps.setInt(3, messageCount);
+            ps.setString(4, liveText);
+            ps.executeUpdate();
+        }
+    }
+    
+    /**
+     * The text a conversation can be found by: what the user asked (without the RAG context) and the answers.
+     */
+    static String searchText(List<TokenCountedMessage> messages, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        for (TokenCountedMessage m : messages) {
+            String text = null;
+            if (m.message() instanceof UserMessage um) {
+                text = StoreEndpoint.cleanUserText(um.hasSingleText() ? um.singleText() : um.contents().stream()
+                        .filter(TextContent.class::isInstance)
+                        .map(content -> ((TextContent) content).text())
+                        .collect(Collectors.joining("\n")));
+            } else if (m.message() instanceof AiMessage ai) {
+                text = ai.text();
+            }
+            if (text == null || text.isBlank()) continue;
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(text);
+            if (sb.length() >= maxLength) {
+                sb.setLength(maxLength);
+                break;
+            }
+        }
+        return sb.toString();
+    }
+    
+    private static MemorySummary toSummary(ResultSet rs) throws SQLException {
+        return new MemorySummary(
+            rs.getString("memory_id"),
+            rs.getString("nice_name"),
+            rs.getObject("last_activity", java.time.OffsetDateTime.class),
+            rs.getInt("message_count")
+        );
+    }
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageType;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content addressed storage for large repeated messages (the rendered system prompt, that also carries the schema prompt).
+ * Such a message is stored once, keyed by the SHA-256 of its encoded form, and conversation rows only hold the hash.
+ * Recently used messages are kept in memory, so known prompts are neither written nor read again.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class MessageBlobs {
+
+    private final String table;
+    private final MessageCodec codec;
+    private final int minSize;
+    private final Map<String, ChatMessage> cache;
+
+    public MessageBlobs(String table, MessageCodec codec, int minSize, int cacheSize) {
+        this.table = table;
+        this.codec = codec;
+        this.minSize = minSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChatMessage> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public String table() {
+        return table;
+    }
+
+    /**
+     * @return true if this message should be stored by reference
+     */
+    public boolean accepts(ChatMessage message, MessageCodec.Encoded encoded) {
+        if (minSize <= 0 || message.type() != ChatMessageType.SYSTEM) return false;
+        int size = encoded.binary() != null ? encoded.binary().length : encoded.json().length();
+        return size >= minSize;
+    }
+
+    /**
+     * Makes sure the message is stored, on the given connection (so in the caller's transaction).
+     * Call {@link #remember(String, ChatMessage)} once that transaction committed.
+     * @return the hash to reference it by
+     */
+    public String store(Connection c, MessageCodec.Encoded encoded) throws SQLException {
+        String hash = hash(encoded);
+        synchronized (cache) {
+            if (cache.containsKey(hash)) return hash;
+        }
+        String sql = "INSERT INTO " + table + " (hash, message_json, message_bin) VALUES (?, ?::jsonb, ?) ON CONFLICT (hash) DO NOTHING";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, hash);
+            ps.setString(2, encoded.json());
+            ps.setBytes(3, encoded.binary());
+            ps.executeUpdate();
+        }
+        return hash;
+    }
+
+    public void remember(String hash, ChatMessage message) {
+        synchronized (cache) {
+            cache.put(hash, message);
+        }
+    }
+
+    /**
+     * Drops everything we believe is stored, e.g. after a reference to a removed message was rejected
+     */
+    public void forget() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public ChatMessage load(Connection c, String hash) throws SQLException {
+        synchronized (cache) {
+            ChatMessage cached = cache.get(hash);
+            if (cached != null) return cached;
+        }
+        String sql = "SELECT message_json::text, message_bin FROM " + table + " WHERE hash = ?";
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, hash);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Missing stored message " + hash);
+                }
+                ChatMessage message = codec.decode(rs.getString(1), rs.getBytes(2));
+                synchronized (cache) {
+                    cache.put(hash, message);
+                }
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Deletes up to batchSize stored messages that no message row references anymore.
+     * @return the number deleted
+     */
+    public int deleteUnreferenced(Connection c, String messageTable, int batchSize) throws SQLException {
+        String sql = """
+            DELETE FROM %s
+            WHERE hash IN (
+                SELECT b.hash FROM %s b
+                WHERE NOT EXISTS (SELECT 1 FROM %s m WHERE m.blob_hash = b.hash)
+                LIMIT ?)
+            """.formatted(table, table, messageTable);
+        int n;
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setInt(1, batchSize);
+            n = ps.executeUpdate();
+        }
+        if (n > 0) forget();
+        return n;
+    }
+
+    private static String hash(MessageCodec.Encoded encoded) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = encoded.binary() != null ? encoded.binary() : encoded.json().getBytes(StandardCharsets.UTF_8);
+            return HexFormat.of().formatHex(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.chappiebot.store;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.JacksonChatMessageJsonCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes chat messages for storage, either as JSON text (the JSONB column) or as Smile binary (the BYTEA column).
+ * Binary messages larger than the compress threshold are deflated when that makes them smaller.
+ * Decoding looks at what is actually stored, so rows in either format can be read at any time.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class MessageCodec {
+
+    public enum Format { JSON, SMILE }
+
+    // Same mapper (mixins) Langchain4j uses in ChatMessageSerializer, so both formats carry the same structure
+    private static final ObjectMapper MAPPER = JacksonChatMessageJsonCodec.chatMessageJsonMapperBuilder().build();
+    private static final SmileFactory SMILE = new SmileFactory();
+
+    // First byte of the binary column
+    private static final byte PLAIN = 0;
+    private static final byte DEFLATED = 1;
+
+    private final Format format;
+    private final int compressThreshold;
+
+    public MessageCodec(Format format, int compressThreshold) {
+        this.format = format;
+        this.compressThreshold = compressThreshold;
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    public int compressThreshold() {
+        return compressThreshold;
+    }
+
+    /**
+     * @return the message in the configured format, with exactly one of json or binary set
+     */
+    public Encoded encode(ChatMessage message) {
+        try {
+            if (format == Format.JSON) {
+                return new Encoded(MAPPER.writeValueAsString(message), null);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            out.write(PLAIN);
+            try (JsonGenerator gen = SMILE.createGenerator(out)) {
+                MAPPER.writeValue(gen, message);
+            }
+            byte[] bytes = out.toByteArray();
+            if (compressThreshold > 0 && bytes.length > compressThreshold) {
+                byte[] deflated = deflate(bytes);
+                if (deflated.length < bytes.length) bytes = deflated;
+            }
+            return new Encoded(null, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode chat message", e);
+        }
+    }
+
+    public ChatMessage decode(String json, byte[] binary) {
+        try {
+            if (binary != null) {
+                try (JsonParser parser = smileParser(binary)) {
+                    return MAPPER.readValue(parser, ChatMessage.class);
+                }
+            }
+            return MAPPER.readValue(json, ChatMessage.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode chat message", e);
+        }
+    }
+
+    /**
+     * The stored message as JSON text, without going through ChatMessage. JSON rows are returned as-is.
+     */
+    public String toJson(String json, byte[] binary) {
+        if (binary == null) return json;
+        StringWriter out = new StringWriter(binary.length * 2);
+        try (JsonParser parser = smileParser(binary);
+             JsonGenerator gen = MAPPER.getFactory().createGenerator(out)) {
+            parser.nextToken();
+            gen.copyCurrentStructure(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to transcode chat message", e);
+        }
+        return out.toString();
+    }
+
+    private static JsonParser smileParser(byte[] stored) throws IOException {
+        if (stored.length == 0) throw new IOException("Empty binary message");
+        if (stored[0] == PLAIN) return SMILE.createParser(stored, 1, stored.length - 1);
+        if (stored[0] == DEFLATED) return SMILE.createParser(inflate(stored));
+        throw new IOException("Unknown binary message marker " + stored[0]);
+    }
+
+    private static byte[] deflate(byte[] plain) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(plain, 1, plain.length - 1);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2);
+            out.write(DEFLATED);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated, 1, deflated.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated binary message");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt binary message", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public record Encoded(String json, byte[] binary) {}
+}
@@ -0,0 +1,279 @@
+package org.chappiebot.store;
+
+import io.quarkus.logging.Log;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+
+/**
+ * Monthly range partitions (on created_at) for the chat message table.
+ * Messages are rewritten on every turn, so all rows of a conversation live in the month it was last active in,
+ * and a whole partition can be dropped once that month falls outside the retention period.
+ * The primary key of a partitioned table has to include created_at, so a trigger keeps (memory_id, msg_index) unique:
+ * inserts for the same conversation take turns on an advisory lock, and an insert of a key that is already there fails
+ * as a unique violation, as it did with the plain table.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class MessagePartitions {
+
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final String LOCK_TIMEOUT = "5s";
+    // invalid_object_definition, as when a new partition would overlap an existing one
+    private static final String OVERLAP = "42P17";
+
+    private final DataSource ds;
+    private final String table;
+
+    public MessagePartitions(DataSource ds, String table) {
+        this.ds = ds;
+        this.table = table;
+    }
+
+    /**
+     * Turns an existing plain table into a partitioned one without copying it: the table itself becomes the partition
+     * for everything before next month, and monthly partitions follow from there. A CHECK constraint for that bound is
+     * validated first, while writes go on, so attaching needs no scan; the unique index the partitioned primary key
+     * needs is built concurrently. Every step gives up after the lock timeout, so a busy table is converted on a later start.
+     * The rows already there stay in that first partition until the row-wise retention deletes them.
+     * @return true if the table was converted, false if it already was partitioned
+     */
+    public boolean convertIfNeeded(int monthsAhead) throws SQLException {
+        String legacy = table + "_legacy";
+        YearMonth boundary = YearMonth.now(ZoneOffset.UTC).plusMonths(1);
+        try (Connection c = ds.getConnection(); Statement st = c.createStatement()) {
+            if (isPartitioned(st)) {
+                // Tables converted before the key was guarded
+                if (!exists(st, "SELECT 1 FROM pg_trigger WHERE tgname = '%s_key' AND tgrelid = '%s'::regclass".formatted(table, table))) {
+                    c.setAutoCommit(false);
+                    try {
+                        st.execute("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+                        guardKey(st);
+                        c.commit();
+                    } catch (SQLException e) {
+                        c.rollback();
+                        throw e;
+                    } finally {
+                        c.setAutoCommit(true);
+                    }
+                }
+                return false;
+            }
+
+            st.execute("SET lock_timeout = '" + LOCK_TIMEOUT + "'");
+            try {
+                // Left over by an attempt that failed halfway
+                st.execute("ALTER TABLE %s DROP CONSTRAINT IF EXISTS %s_bound".formatted(table, legacy));
+                if (exists(st, "SELECT 1 FROM pg_index WHERE indexrelid = to_regclass('%s_key') AND NOT indisvalid".formatted(legacy))) {
+                    st.execute("DROP INDEX CONCURRENTLY %s_key".formatted(legacy));
+                }
+
+                st.execute("CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS %s_key ON %s (memory_id, msg_index, created_at)"
+                        .formatted(legacy, table));
+                st.execute("ALTER TABLE %s ADD CONSTRAINT %s_bound CHECK (created_at < '%s') NOT VALID"
+                        .formatted(table, legacy, start(boundary)));
+                // Scans under a lock that lets reads and writes go on
+                st.execute("ALTER TABLE %s VALIDATE CONSTRAINT %s_bound".formatted(table, legacy));
+
+                attach(c, st, legacy, boundary, monthsAhead);
+            } catch (SQLException e) {
+                // The constraint would reject new rows once next month starts
+                try {
+                    st.execute("ALTER TABLE %s DROP CONSTRAINT IF EXISTS %s_bound".formatted(table, legacy));
+                } catch (SQLException dropFailed) {
+                    e.addSuppressed(dropFailed);
+                }
+                throw e;
+            } finally {
+                st.execute("RESET lock_timeout");
+            }
+        }
+        Log.infof("Partitioned %s by month; the existing rows are in %s (before %s)", table, legacy, boundary);
+        return true;
+    }
+
+    // Renames the table, creates the partitioned one in its place and attaches it; only catalog changes, in one short transaction
+    private void attach(Connection c, Statement st, String legacy, YearMonth boundary, int monthsAhead) throws SQLException {
+        c.setAutoCommit(false);
+        try {
+            st.execute("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+            boolean midIndex = exists(st, "SELECT to_regclass('idx_%s_mid')".formatted(table));
+            boolean blobIndex = exists(st, "SELECT to_regclass('idx_%s_blob')".formatted(table));
+            String blobTable = referencedTable(st, "fk_" + table + "_blob");
+
+            st.execute("ALTER TABLE %s DROP CONSTRAINT %s_pkey".formatted(table, table));
+            st.execute("ALTER TABLE %s ADD CONSTRAINT %s_pkey PRIMARY KEY USING INDEX %s_key".formatted(table, legacy, legacy));
+            st.execute("ALTER TABLE %s RENAME TO %s".formatted(table, legacy));
+            // Index and constraint names are per schema; the partitioned table gets the original ones
+            if (midIndex) st.execute("ALTER INDEX idx_%s_mid RENAME TO idx_%s_mid".formatted(table, legacy));
+            if (blobIndex) st.execute("ALTER INDEX idx_%s_blob RENAME TO idx_%s_blob".formatted(table, legacy));
+            if (blobTable != null) st.execute("ALTER TABLE %s RENAME CONSTRAINT fk_%s_blob TO fk_%s_blob".formatted(legacy, table, legacy));
+
+            st.execute("CREATE TABLE %s (LIKE %s INCLUDING DEFAULTS) PARTITION BY RANGE (created_at)".formatted(table, legacy));
+            st.execute("ALTER TABLE %s ADD PRIMARY KEY (memory_id, msg_index, created_at)".formatted(table));
+            // Created while there are no partitions yet; attaching then takes over the equivalent ones of the old table
+            if (midIndex) st.execute("CREATE INDEX idx_%s_mid ON %s (memory_id)".formatted(table, table));
+            if (blobIndex) st.execute("CREATE INDEX idx_%s_blob ON %s (blob_hash) WHERE blob_hash IS NOT NULL".formatted(table, table));
+            if (blobTable != null) {
+                st.execute("ALTER TABLE %s ADD CONSTRAINT fk_%s_blob FOREIGN KEY (blob_hash) REFERENCES %s (hash)"
+                        .formatted(table, table, blobTable));
+            }
+            guardKey(st);
+
+            st.execute("ALTER TABLE %s ATTACH PARTITION %s FOR VALUES FROM (MINVALUE) TO ('%s')"
+                    .formatted(table, legacy, start(boundary)));
+            st.execute("ALTER TABLE %s DROP CONSTRAINT %s_bound".formatted(legacy, legacy));
+            st.execute("CREATE TABLE %s_pdefault PARTITION OF %s DEFAULT".formatted(table, table));
+            YearMonth to = YearMonth.now(ZoneOffset.UTC).plusMonths(monthsAhead);
+            for (YearMonth m = boundary; !m.isAfter(to); m = m.plusMonths(1)) {
+                st.execute(createPartition(m));
+            }
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(true);
+        }
+    }
+
+    // Created on the partitioned table, so every partition (also the ones attached or created later) gets the trigger
+    private void guardKey(Statement st) throws SQLException {
+        st.execute("""
+            CREATE OR REPLACE FUNCTION %1$s_key() RETURNS trigger LANGUAGE plpgsql AS $$
+            BEGIN
+                -- Held until the end of the transaction, so a concurrent insert sees this one once it is committed
+                PERFORM pg_advisory_xact_lock(hashtext('%1$s'), hashtext(NEW.memory_id));
+                IF EXISTS (SELECT 1 FROM %1$s WHERE memory_id = NEW.memory_id AND msg_index = NEW.msg_index) THEN
+                    RAISE unique_violation USING MESSAGE = format(
+                        'duplicate key value violates unique key (memory_id, msg_index)=(%%s, %%s) of %1$s', NEW.memory_id, NEW.msg_index);
+                END IF;
+                RETURN NEW;
+            END
+            $$
+            """.formatted(table));
+        st.execute("DROP TRIGGER IF EXISTS %s_key ON %s".formatted(table, table));
+        st.execute("CREATE TRIGGER %s_key BEFORE INSERT ON %s FOR EACH ROW EXECUTE FUNCTION %s_key()".formatted(table, table, table));
+    }
+
+    /**
+     * Creates the partitions for this month and the next ones, so rows do not land in the default partition.
+     */
+    public void ensureAhead(int monthsAhead) {
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        try (Connection c = ds.getConnection(); Statement st = c.createStatement()) {
+            for (int i = 0; i <= monthsAhead; i++) {
+                YearMonth month = now.plusMonths(i);
+                try {
+                    st.execute(createPartition(month));
+                } catch (SQLException e) {
+                    if (OVERLAP.equals(e.getSQLState())) {
+                        // Still covered by the partition of a converted table
+                        Log.debugf("No %s partition for %s yet: %s", month, table, e.getMessage());
+                    } else {
+                        // Typically because the default partition already holds rows for that month
+                        Log.warnf("Could not create the %s partition for %s: %s", month, table, e.getMessage());
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            Log.warn("Could not create upcoming partitions for " + table + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops (or, when archiving, detaches) every monthly partition that ends before the cutoff.
+     * @return the partitions that were removed from the table
+     */
+    public List<String> removeBefore(OffsetDateTime cutoff, boolean archive) {
+        List<String> removed = new ArrayList<>();
+        for (String partition : monthlyPartitions()) {
+            YearMonth month = YearMonth.parse(partition.substring(partition.length() - 6), SUFFIX);
+            OffsetDateTime end = month.plusMonths(1).atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC);
+            if (end.isAfter(cutoff)) continue;
+
+            String sql = archive
+                    ? "ALTER TABLE %s DETACH PARTITION %s".formatted(table, partition)
+                    : "DROP TABLE %s".formatted(partition);
+            try (Connection c = ds.getConnection(); Statement st = c.createStatement()) {
+                c.setAutoCommit(false);
+                try {
+                    // Needs a short exclusive lock on the parent; rather skip this round than queue up writers
+                    st.execute("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+                    st.execute(sql);
+                    c.commit();
+                    removed.add(partition);
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw e;
+                } finally {
+                    c.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                Log.warnf("Could not remove partition %s: %s", partition, e.getMessage());
+            }
+        }
+        return removed;
+    }
+
+    private List<String> monthlyPartitions() {
+        String sql = """
+            SELECT c.relname
+            FROM pg_inherits i
+            JOIN pg_class c ON c.oid = i.inhrelid
+            WHERE i.inhparent = '%s'::regclass
+            ORDER BY c.relname
+            """.formatted(table);
+        List<String> out = new ArrayList<>();
+        try (Connection c = ds.getConnection(); Statement st = c.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            String prefix = table + "_p";
+            while (rs.next()) {
+                String name = rs.getString(1);
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d{6}")) {
+                    out.add(name);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to list partitions of " + table, e);
+        }
+        return out;
+    }
+
+    private boolean isPartitioned(Statement st) throws SQLException {
+        String sql = "SELECT relkind FROM pg_class WHERE oid = '%s'::regclass".formatted(table);
+        try (ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() && "p".equals(rs.getString(1));
+        }
+    }
+
+    private static boolean exists(Statement st, String sql) throws SQLException {
+        try (ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() && rs.getObject(1) != null;
+        }
+    }
+
+    private static String referencedTable(Statement st, String constraint) throws SQLException {
+        String sql = "SELECT confrelid::regclass::text FROM pg_constraint WHERE conname = '%s'".formatted(constraint);
+        try (ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    private static OffsetDateTime start(YearMonth month) {
+        return month.atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC);
+    }
+
+    private String createPartition(YearMonth month) {
+        OffsetDateTime from = start(month);
+        OffsetDateTime to = from.plusMonths(1);
+        return "CREATE TABLE IF NOT EXISTS %s_p%s PARTITION OF %s FOR VALUES FROM ('%s') TO ('%s')"
+                .formatted(table, month.format(SUFFIX), table, from, to);
+    }
+}
@@ -0,0 +1,44 @@
+package org.chappiebot.store;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token for keyset pagination over (last_activity DESC, memory_id ASC).
+ * Clients should pass it back as-is and never build it themselves.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public record PageToken(OffsetDateTime lastActivity, String memoryId) {
+
+    private static final char SEPARATOR = '|';
+
+    public static PageToken after(MemorySummary last) {
+        return new PageToken(last.lastActivity(), last.memoryId());
+    }
+
+    public String encode() {
+        String raw = lastActivity.toString() + SEPARATOR + memoryId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token the token as given to the client, may be null or blank
+     * @return the decoded token, or null if no token was given
+     * @throws IllegalArgumentException if the token is not one we issued
+     */
+    public static PageToken decode(String token) {
+        if (token == null || token.isBlank()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token.strip()), StandardCharsets.UTF_8);
+            int i = raw.indexOf(SEPARATOR);
+            if (i <= 0 || i == raw.length() - 1) {
+                throw new IllegalArgumentException("Invalid page token");
+            }
+            return new PageToken(OffsetDateTime.parse(raw.substring(0, i)), raw.substring(i + 1));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.chappiebot.store;
+
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Removes chat history older than the retention period, in the background.
+ * Whole monthly partitions are dropped (or detached, when archiving) if the message table is partitioned,
+ * then the remaining expired conversations are deleted in small batches, so no sweep holds long locks.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+@Startup
+@ApplicationScoped
+public class RetentionSweeper {
+
+    @Inject
+    StoreManager storeManager;
+
+    @ConfigProperty(name = "chappie.store.retention.period")
+    Optional<Duration> retention;
+
+    @ConfigProperty(name = "chappie.store.retention.archive", defaultValue = "false")
+    boolean archive;
+
+    @ConfigProperty(name = "chappie.store.retention.sweep-interval", defaultValue = "PT1H")
+    Duration interval;
+
+    @ConfigProperty(name = "chappie.store.retention.batch-size", defaultValue = "200")
+    int batchSize;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    void init() {
+        if (retention.isEmpty()) {
+            return;
+        }
+        Log.infof("CHAPPiE chat history retention is %s (sweeping every %s)", retention.get(), interval);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chappie-retention-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweepSafely, interval.toSeconds(), interval.toSeconds(), TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    private void sweepSafely() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            Log.warn("CHAPPiE retention sweep failed: " + e.getMessage());
+        }
+    }
+
+    void sweep() {
+        Optional<JdbcChatMemoryStore> store = storeManager.getJdbcChatMemoryStore();
+        if (store.isEmpty()) return;
+        OffsetDateTime cutoff = OffsetDateTime.now().minus(retention.get());
+
+        storeManager.getMessagePartitions().ifPresent(partitions -> {
+            partitions.ensureAhead(storeManager.getPartitionMonthsAhead());
+            List<String> removed = partitions.removeBefore(cutoff, archive);
+            if (!removed.isEmpty()) {
+                Log.infof("CHAPPiE retention: %s partition(s) %s", archive ? "detached" : "dropped", removed);
+            }
+        });
+
+        long conversations = drain(() -> store.get().deleteConversationsBefore(cutoff, batchSize));
+        // Archived partitions keep referencing their stored system prompts, so those are kept too
+        long blobs = archive ? 0 : drain(() -> store.get().deleteUnreferencedBlobs(batchSize));
+        if (conversations > 0 || blobs > 0) {
+            Log.infof("CHAPPiE retention: deleted %d conversation(s) and %d unreferenced stored message(s)", conversations, blobs);
+        }
+    }
+
+    private static long drain(IntSupplier batch) {
+        long total = 0;
+        int n;
+        do {
+            n = batch.getAsInt();
+            total += n;
+        } while (n > 0 && !Thread.currentThread().isInterrupted());
+        return total;
+    }
+}
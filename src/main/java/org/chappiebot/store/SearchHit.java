@@ -0,0 +1,10 @@
+package org.chappiebot.store;
+
+import java.time.OffsetDateTime;
+
+/**
+ * A conversation that matched a search, with a snippet of the matching text (matches are marked with **)
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public record SearchHit(String memoryId, String niceName, OffsetDateTime lastActivity, int messageCount, float rank, String snippet) {
+}
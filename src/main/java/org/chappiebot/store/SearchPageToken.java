@@ -0,0 +1,41 @@
+package org.chappiebot.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token for keyset pagination over search results, ordered by (rank DESC, memory_id ASC).
+ * Clients should pass it back as-is and never build it themselves.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public record SearchPageToken(float rank, String memoryId) {
+
+    private static final char SEPARATOR = '|';
+
+    public static SearchPageToken after(SearchHit last) {
+        return new SearchPageToken(last.rank(), last.memoryId());
+    }
+
+    public String encode() {
+        // The exact float bits, so the next page starts exactly after this hit
+        String raw = Integer.toHexString(Float.floatToIntBits(rank)) + SEPARATOR + memoryId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token the token as given to the client, may be null or blank
+     * @return the decoded token, or null if no token was given
+     * @throws IllegalArgumentException if the token is not one we issued
+     */
+    public static SearchPageToken decode(String token) {
+        if (token == null || token.isBlank()) return null;
+        String raw = new String(Base64.getUrlDecoder().decode(token.strip()), StandardCharsets.UTF_8);
+        int i = raw.indexOf(SEPARATOR);
+        if (i <= 0 || i == raw.length() - 1) {
+            throw new IllegalArgumentException("Invalid page token");
+        }
+        // NumberFormatException is an IllegalArgumentException
+        float rank = Float.intBitsToFloat(Integer.parseUnsignedInt(raw.substring(0, i), 16));
+        return new SearchPageToken(rank, raw.substring(i + 1));
+    }
+}
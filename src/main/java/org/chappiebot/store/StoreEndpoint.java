@@ -1,24 +1,30 @@
 package org.chappiebot.store;
 
-import dev.langchain4j.data.message.ChatMessage;
-import dev.langchain4j.data.message.ChatMessageSerializer;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import dev.langchain4j.data.message.ChatMessageType;
-import dev.langchain4j.data.message.Content;
-import dev.langchain4j.data.message.TextContent;
-import dev.langchain4j.data.message.UserMessage;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
-import io.quarkus.logging.Log;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * The Endpoint for the message store
@@ -30,29 +36,16 @@ public class StoreEndpoint {
     @Inject
     StoreManager storeManager;
     
+    @Inject
+    ObjectMapper objectMapper;
+    
     @GET
     @Path("/most-recent")
     @Produces(MediaType.APPLICATION_JSON)
     public Response getMostRecentChat() {
         return storeManager.getJdbcChatMemoryStore()
-            .map(store -> {
-                Map<MemorySummary, List<ChatMessage>> map = store.getMostRecentChat();
-                if (map.isEmpty()) {
-                    return Response.noContent().build();
-                }
-
-                Map.Entry<MemorySummary, List<ChatMessage>> entry = map.entrySet().iterator().next();
-                MemorySummary s = entry.getKey();
-
-                List<ChatMessage> transformed = entry.getValue().stream()
-                    .filter(m -> m != null && m.type() != ChatMessageType.SYSTEM)
-                    .map(this::normalizeUserMessage)
-                    .toList();
-
-                String messagesJson = ChatMessageSerializer.messagesToJson(transformed);
-                String json = buildMostRecentPayload(s, messagesJson);
-                return Response.ok(json).build();
-            })
+            .flatMap(JdbcChatMemoryStore::openMostRecentChat)
+            .map(this::streamChat)
             .orElseGet(() -> Response.noContent().build());
     }
 
@@ -61,24 +54,8 @@ public class StoreEndpoint {
     @Produces(MediaType.APPLICATION_JSON)
     public Response getMessages(@PathParam("memoryId") String memoryId) {
         return storeManager.getJdbcChatMemoryStore()
-            .map(store -> {
-                Map<MemorySummary, List<ChatMessage>> map = store.getChat(memoryId);
-                if (map.isEmpty()) {
-                    return Response.noContent().build();
-                }
-
-                Map.Entry<MemorySummary, List<ChatMessage>> entry = map.entrySet().iterator().next();
-                MemorySummary summary = entry.getKey();
-
-                List<ChatMessage> transformed = entry.getValue().stream()
-                    .filter(m -> m != null && m.type() != ChatMessageType.SYSTEM)
-                    .map(this::normalizeUserMessage)
-                    .toList();
-
-                String messagesJson = ChatMessageSerializer.messagesToJson(transformed);
-                String json = buildMostRecentPayload(summary, messagesJson); // same structure as /most-recent
-                return Response.ok(json).build();
-            })
+            .flatMap(store -> store.openChat(memoryId))
+            .map(this::streamChat) // same structure as /most-recent
             .orElseGet(() -> Response.noContent().build());
     }
     
@@ -93,97 +70,200 @@ public class StoreEndpoint {
             .orElseGet(() -> Response.noContent().build());
     }
     
+    /**
+     * Lists conversations, most recent first.
+     * Pages are keyset based: pass the X-Chappie-Next-Cursor header of the previous page as cursor.
+     * The offset parameter is still honoured for older clients.
+     */
     @GET
     @Path("/chats")
     @Produces(MediaType.APPLICATION_JSON)
     public Response getChats(@QueryParam("filter") String filter,
                             @QueryParam("limit") @DefaultValue("100")int limit,
-                            @QueryParam("offset") @DefaultValue("0") int offset) {
+                            @QueryParam("offset") @DefaultValue("0") int offset,
+                            @QueryParam("cursor") String cursor) {
         int cappedLimit = Math.min(Math.max(limit, 1), 1000);
         int cappedOffset = Math.max(offset, 0);
+        PageToken after = decodeCursor(cursor);
         return storeManager.getJdbcChatMemoryStore()
             .map(store -> {
-                List<MemorySummary> listSummaries = store.listSummaries(filter, cappedLimit, cappedOffset);
-                return Response.ok(listSummaries).build();
+                if (after == null && cappedOffset > 0) {
+                    return Response.ok(store.listSummaries(filter, cappedLimit, cappedOffset)).build();
+                }
+                List<MemorySummary> page = store.listSummaries(filter, cappedLimit, after);
+                return withNextCursor(Response.ok(page), page, cappedLimit).build();
             })
             .orElseGet(() -> Response.noContent().build());
     }
     
-    
-    
+    /**
+     * Lists memoryIds, most recent first.
+     * With a limit (and optional cursor) this returns one keyset page, otherwise the full list is streamed.
+     */
     @GET
     @Path("/memoryIds")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getAllMemoryIds(){
-        if(storeManager.getJdbcChatMemoryStore().isPresent()){
-            JdbcChatMemoryStore chatMemoryStore = storeManager.getJdbcChatMemoryStore().get();
-            return Response.ok(chatMemoryStore.getAllMemoryIds()).build();
-        }
-        return Response.noContent().build();
+    public Response getAllMemoryIds(@QueryParam("limit") Integer limit,
+                                    @QueryParam("cursor") String cursor){
+        PageToken after = decodeCursor(cursor);
+        return storeManager.getJdbcChatMemoryStore()
+            .map(store -> {
+                if (limit == null && after == null) {
+                    StreamingOutput stream = out -> {
+                        try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+                            gen.writeStartArray();
+                            store.streamMemoryIds(id -> {
+                                try {
+                                    gen.writeString(id);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            });
+                            gen.writeEndArray();
+                        }
+                    };
+                    return Response.ok(stream).build();
+                }
+                int cappedLimit = Math.min(Math.max(limit == null ? 100 : limit, 1), 1000);
+                List<MemorySummary> page = store.listSummaries(null, cappedLimit, after);
+                List<String> ids = page.stream().map(MemorySummary::memoryId).toList();
+                return withNextCursor(Response.ok(ids), page, cappedLimit).build();
+            })
+            .orElseGet(() -> Response.noContent().build());
     }
     
-    private ChatMessage normalizeUserMessage(ChatMessage m) {
-        if (m.type() != ChatMessageType.USER || !(m instanceof UserMessage um)) {
-            return m;
+    /**
+     * Finds conversations by what was said in them, best match first, with a snippet per conversation.
+     * Pages are keyset based: pass the X-Chappie-Next-Cursor header of the previous page as cursor.
+     */
+    @GET
+    @Path("/search")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response search(@QueryParam("q") String query,
+                           @QueryParam("limit") @DefaultValue("20") int limit,
+                           @QueryParam("cursor") String cursor) {
+        if (query == null || query.isBlank()) {
+            throw new BadRequestException("Missing search query (q)");
         }
-
-        String text = safeText(um);
-        if (text != null) {
-            String cleaned = cleanUserText(text);
-            return userMessageFromText(cleaned);
+        int cappedLimit = Math.min(Math.max(limit, 1), 100);
+        SearchPageToken after;
+        try {
+            after = SearchPageToken.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor");
         }
-
-        if (um.contents() != null && !um.contents().isEmpty()) {
-            List<Content> newContents = um.contents().stream()
-                .map(c -> (c instanceof TextContent tc)
-                    ? new TextContent(cleanUserText(tc.text()))
-                    : c)
-                .toList();
-            return userMessageFromContents(newContents);
+        return storeManager.getJdbcChatMemoryStore()
+            .map(store -> {
+                List<SearchHit> page = store.search(query.strip(), cappedLimit, after);
+                Response.ResponseBuilder builder = Response.ok(page);
+                if (page.size() == cappedLimit) {
+                    builder.header(HEADER_NEXT_CURSOR, SearchPageToken.after(page.get(page.size() - 1)).encode());
+                }
+                return builder.build();
+            })
+            .orElseGet(() -> Response.noContent().build());
+    }
+    
+    /**
+     * Streams all conversations as NDJSON, for backup or to move them to another environment
+     */
+    @GET
+    @Path("/export")
+    @Produces(NDJSON)
+    public Response exportConversations() {
+        return storeManager.getConversationTransfer()
+            .map(transfer -> {
+                StreamingOutput stream = transfer::exportTo;
+                return Response.ok(stream)
+                        .header("Content-Disposition", "attachment; filename=\"chappie-conversations.ndjson\"")
+                        .build();
+            })
+            .orElseGet(() -> Response.noContent().build());
+    }
+    
+    /**
+     * Imports NDJSON as produced by the export. Existing conversations with the same memoryId are replaced.
+     */
+    @POST
+    @Path("/import")
+    @Consumes(NDJSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importConversations(InputStream body) throws IOException {
+        Optional<ConversationTransfer> transfer = storeManager.getConversationTransfer();
+        if (transfer.isEmpty()) {
+            return Response.noContent().build();
         }
-
-        return m;
+        int imported = transfer.get().importFrom(body);
+        return Response.ok(Map.of("imported", imported)).build();
     }
-
-    private static String safeText(UserMessage um) {
+    
+    private static PageToken decodeCursor(String cursor) {
         try {
-            String t = um.singleText();
-            return t;
-        } catch (Throwable e) {
-            Log.debugf("Failed to extract singleText: %s", e.getMessage());
-            return null;
+            return PageToken.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor");
         }
     }
-
-    private static UserMessage userMessageFromText(String text) {
-        try {
-            return UserMessage.from(text);
-        } catch (Throwable e) {
-            Log.debugf("UserMessage.from(String) failed: %s", e.getMessage());
-            try {
-                return UserMessage.userMessage(text);
-            } catch (Throwable e2) {
-                Log.debugf("UserMessage.userMessage(String) failed: %s", e2.getMessage());
-                return UserMessage.from(List.of(new TextContent(text)));
+    
+    private static Response.ResponseBuilder withNextCursor(Response.ResponseBuilder builder, List<MemorySummary> page, int limit) {
+        if (page.size() == limit) {
+            builder.header(HEADER_NEXT_CURSOR, PageToken.after(page.get(page.size() - 1)).encode());
+        }
+        return builder;
+    }
+    
+    /**
+     * Writes {"summary":{...},"messages":[...]} straight to the response while the rows are read, a chunk at a time.
+     * The stored JSON is passed through as-is. Only user messages are touched, to strip the prompt decoration.
+     */
+    private Response streamChat(ChatCursor cursor) {
+        StreamingOutput stream = out -> {
+            try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+                MemorySummary s = cursor.summary();
+                gen.writeStartObject();
+                gen.writeObjectFieldStart("summary");
+                gen.writeStringField("memoryId", s.memoryId());
+                gen.writeStringField("niceName", s.niceName() == null ? "" : s.niceName());
+                gen.writeStringField("lastActivity", s.lastActivity() == null ? "" : s.lastActivity().toString());
+                gen.writeNumberField("messageCount", s.messageCount());
+                gen.writeEndObject();
+                gen.writeArrayFieldStart("messages");
+                cursor.forEachMessage((type, json) -> {
+                    if (type == ChatMessageType.USER) {
+                        gen.writeTree(normalizeUserMessage(json));
+                    } else {
+                        gen.writeRawValue(json);
+                    }
+                });
+                gen.writeEndArray();
+                gen.writeEndObject();
             }
+        };
+        return Response.ok(stream).build();
+    }
+    
+    private JsonNode normalizeUserMessage(String json) throws IOException {
+        JsonNode node = objectMapper.readTree(json);
+        cleanTextField(node);
+        JsonNode contents = node.get("contents");
+        if (contents != null && contents.isArray()) {
+            contents.forEach(StoreEndpoint::cleanTextField);
         }
+        return node;
     }
-
-    private static UserMessage userMessageFromContents(List<Content> contents) {
-        try {
-            return UserMessage.from(contents);
-        } catch (Throwable e) {
-            Log.debugf("UserMessage.from(List<Content>) failed: %s", e.getMessage());
-            String joined = contents.stream()
-                .map(c -> c instanceof TextContent tc ? tc.text() : "")
-                .reduce("", (a, b) -> a.isEmpty() ? b : a + "\n" + b);
-            return userMessageFromText(joined);
+    
+    private static void cleanTextField(JsonNode node) {
+        if (node instanceof ObjectNode on && on.get("text") != null && on.get("text").isTextual()) {
+            on.put("text", cleanUserText(on.get("text").asText()));
         }
     }
 
-    private static String cleanUserText(String text) {
+    static String cleanUserText(String text) {
         if (text == null) return null;
 
+        // Remove the summary of earlier (archived) messages
+        text = ConversationCompactor.stripSummary(text);
+
         // Remove the RAG part
         int ragStartIndex = text.indexOf("[RAG CONTEXT]");
         if(ragStartIndex >= 0){
@@ -195,46 +275,6 @@ public class StoreEndpoint {
         return text.trim();
     }
     
-    private static String buildMostRecentPayload(MemorySummary s, String messagesJson) {
-        String memoryId = jsonString(s.memoryId());
-        String niceName = jsonString(s.niceName() == null ? "" : s.niceName());
-        String lastActivity = jsonString(s.lastActivity() == null ? "" : s.lastActivity().toString());
-        int messageCount = s.messageCount();
-
-        return "{"
-            + "\"summary\":{"
-                + "\"memoryId\":" + memoryId + ","
-                + "\"niceName\":" + niceName + ","
-                + "\"lastActivity\":" + lastActivity + ","
-                + "\"messageCount\":" + messageCount
-            + "},"
-            + "\"messages\":" + messagesJson
-        + "}";
-    }
-
-    private static String jsonString(String s) {
-        if (s == null) return "null";
-        StringBuilder sb = new StringBuilder(s.length() + 16).append('"');
-        for (int i = 0; i < s.length(); i++) {
-            char ch = s.charAt(i);
-            switch (ch) {
-                case '"'  -> sb.append("\\\"");
-                case '\\' -> sb.append("\\\\");
-                case '\b' -> sb.append("\\b");
-                case '\f' -> sb.append("\\f");
-                case '\n' -> sb.append("\\n");
-                case '\r' -> sb.append("\\r");
-                case '\t' -> sb.append("\\t");
-                default -> {
-                    if (ch < 0x20) {
-                        sb.append(String.format("\\u%04x", (int) ch));
-                    } else {
-                        sb.append(ch);
-                    }
-                }
-            }
-        }
-        return sb.append('"').toString();
-    }
-
+    private static final String HEADER_NEXT_CURSOR = "X-Chappie-Next-Cursor";
+    private static final String NDJSON = "application/x-ndjson";
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.inject.Instance;
 import jakarta.inject.Inject;
 import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.sql.DataSource;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
@@ -21,54 +22,132 @@ public class StoreManager {
     private static final String DOCUMENTS_TABLE = "rag_documents";
     private static final String MEMORY_TABLE = "chappie_chat_messages";
     private static final String MEMORY_NAME_TABLE = "chappie_memory_names";
+    private static final String MEMORY_SUMMARY_TABLE = "chappie_chat_summaries";
+    private static final String MEMORY_BLOB_TABLE = "chappie_chat_blobs";
+    private static final String MEMORY_ARCHIVE_TABLE = "chappie_chat_archive";
     
     @ConfigProperty(name = "chappie.rag.pgvector.dimension", defaultValue = "384")
     int dim;
     
+    @ConfigProperty(name = "chappie.store.codec", defaultValue = "json")
+    MessageCodec.Format codecFormat;
+    
+    @ConfigProperty(name = "chappie.store.codec.compress-threshold", defaultValue = "4096")
+    int codecCompressThreshold;
+    
+    @ConfigProperty(name = "chappie.store.codec.migrate", defaultValue = "false")
+    boolean codecMigrate;
+    
+    @ConfigProperty(name = "chappie.store.codec.migrate.batch-size", defaultValue = "500")
+    int codecMigrateBatchSize;
+    
+    @ConfigProperty(name = "chappie.store.dedupe.min-size", defaultValue = "1024")
+    int dedupeMinSize;
+    
+    @ConfigProperty(name = "chappie.store.dedupe.cache-size", defaultValue = "256")
+    int dedupeCacheSize;
+    
+    @ConfigProperty(name = "chappie.store.search.index.batch-size", defaultValue = "100")
+    int searchIndexBatchSize;
+    
+    @ConfigProperty(name = "chappie.store.partitioning.enabled", defaultValue = "false")
+    boolean partitioningEnabled;
+    
+    @ConfigProperty(name = "chappie.store.partitioning.months-ahead", defaultValue = "2")
+    int partitionMonthsAhead;
+    
     private volatile Optional<PgVectorEmbeddingStore> cached;
+    // Not synchronized: the first caller creates the tables, and on a virtual thread a monitor would pin its carrier
+    private final ReentrantLock initLock = new ReentrantLock();
 
-    private JdbcChatMemoryStore jdbcChatMemoryStore = null;
+    // Set up once, by the first caller, under the lock; the fields below are written before this is set
+    private volatile boolean initialized = false;
+    private volatile DataSource dataSource = null;
+    private volatile JdbcChatMemoryStore jdbcChatMemoryStore = null;
+    private volatile MessagePartitions messagePartitions = null;
+    private volatile ConversationTransfer conversationTransfer = null;
     
     public Optional<PgVectorEmbeddingStore> getStore() {
         if (this.cached != null) return this.cached;
-        synchronized (this) {
+        initialize();
+        initLock.lock();
+        try {
             if (this.cached != null) return this.cached;
-            DataSource ds = resolveDataSource();
-            cached = (ds == null)
+            cached = (dataSource == null)
                     ? Optional.empty()
                     : Optional.of(PgVectorEmbeddingStore.datasourceBuilder()
-                        .datasource(ds)
+                        .datasource(dataSource)
                         .table(DOCUMENTS_TABLE)
                         .dimension(dim)
                         .build());
             return cached;
+        } finally {
+            initLock.unlock();
         }
     }
     
+    /**
+     * @return the partitions of the message table, if partitioning is enabled
+     */
+    public Optional<MessagePartitions> getMessagePartitions() {
+        initialize();
+        return Optional.ofNullable(this.messagePartitions);
+    }
+    
+    /**
+     * @return bulk export and import of conversations, if chat memory is available
+     */
+    public Optional<ConversationTransfer> getConversationTransfer() {
+        initialize();
+        return Optional.ofNullable(this.conversationTransfer);
+    }
+    
+    public int getPartitionMonthsAhead() {
+        return partitionMonthsAhead;
+    }
+    
     public Optional<JdbcChatMemoryStore> getJdbcChatMemoryStore(){
-        if(this.jdbcChatMemoryStore == null){
-            synchronized (this) {
-                if(this.jdbcChatMemoryStore == null){
-                    resolveDataSource();
-                }
-            }
-        }
-        if(this.jdbcChatMemoryStore == null){
-            return Optional.empty();
+        initialize();
+        return Optional.ofNullable(this.jdbcChatMemoryStore);
+    }
+    
+    private void initialize() {
+        if (this.initialized) return;
+        initLock.lock();
+        try {
+            if (this.initialized) return;
+            resolveDataSource();
+            this.initialized = true;
+        } finally {
+            initLock.unlock();
         }
-        return Optional.of(this.jdbcChatMemoryStore);
     }
     
-    private DataSource resolveDataSource() {
+    /**
+     * Creates (or upgrades) the tables and the chat memory store, and starts the background migrations.
+     * Runs once: a store rebuilt later would lose the blob cache and start the migrations again.
+     */
+    private void resolveDataSource() {
         if (chappieDs != null && chappieDs.isResolvable()) {
             DataSource ds = chappieDs.get();
-            if(ensureChatTableExists(ds, MEMORY_TABLE) && ensureNameTableExists(ds, MEMORY_NAME_TABLE)) {
-                jdbcChatMemoryStore = new JdbcChatMemoryStore(ds, MEMORY_TABLE, MEMORY_NAME_TABLE);
+            if(ensureChatTableExists(ds, MEMORY_TABLE) 
+                    && ensureNameTableExists(ds, MEMORY_NAME_TABLE)
+                    && ensureSummaryTableExists(ds, MEMORY_SUMMARY_TABLE, MEMORY_TABLE, MEMORY_NAME_TABLE)
+                    && ensureBlobTableExists(ds, MEMORY_BLOB_TABLE, MEMORY_TABLE)
+                    && ensureArchiveTableExists(ds, MEMORY_ARCHIVE_TABLE)
+                    && ensurePartitioning(ds)) {
+                MessageCodec codec = new MessageCodec(codecFormat, codecCompressThreshold);
+                MessageBlobs blobs = new MessageBlobs(MEMORY_BLOB_TABLE, codec, dedupeMinSize, dedupeCacheSize);
+                jdbcChatMemoryStore = new JdbcChatMemoryStore(ds, MEMORY_TABLE, MEMORY_NAME_TABLE, MEMORY_SUMMARY_TABLE, MEMORY_ARCHIVE_TABLE, codec, blobs);
+                conversationTransfer = new ConversationTransfer(ds, MEMORY_TABLE, MEMORY_NAME_TABLE, MEMORY_SUMMARY_TABLE, MEMORY_ARCHIVE_TABLE, MEMORY_BLOB_TABLE);
+                if (codecMigrate) {
+                    migrateCodecInBackground(jdbcChatMemoryStore);
+                }
+                indexForSearchInBackground(jdbcChatMemoryStore);
             }
-            return ds;
+            dataSource = ds;
         } else {
             Log.warn("RAG is disabled");
-            return null;
         }
     }
     
@@ -78,7 +157,11 @@ public class StoreManager {
               memory_id    VARCHAR(200) NOT NULL,
               msg_index    INTEGER      NOT NULL,
               created_at   TIMESTAMPTZ  NOT NULL DEFAULT now(),
-              message_json JSONB        NOT NULL,
+              message_type VARCHAR(32),
+              message_json JSONB,
+              message_bin  BYTEA,
+              blob_hash    VARCHAR(64),
+              token_count  INTEGER,
               last_modified TIMESTAMPTZ  NOT NULL DEFAULT now(),
               PRIMARY KEY (memory_id, msg_index)
             )
@@ -87,9 +170,33 @@ public class StoreManager {
         String idx = "CREATE INDEX IF NOT EXISTS idx_%s_mid ON %s(memory_id)"
                 .formatted(table, table);
         
+        // Tables created before token counts were cached; existing rows are estimated when next read
+        String tokenCount = "ALTER TABLE %s ADD COLUMN IF NOT EXISTS token_count INTEGER".formatted(table);
+        
+        // Tables created before the binary codec existed
+        String hasType = """
+            SELECT EXISTS (SELECT 1 FROM information_schema.columns
+                           WHERE table_name = '%s' AND column_name = 'message_type')
+            """.formatted(table);
+        String[] upgrade = {
+            "ALTER TABLE %s ADD COLUMN IF NOT EXISTS message_type VARCHAR(32)".formatted(table),
+            "ALTER TABLE %s ADD COLUMN IF NOT EXISTS message_bin BYTEA".formatted(table),
+            "ALTER TABLE %s ALTER COLUMN message_json DROP NOT NULL".formatted(table),
+            "UPDATE %s SET message_type = message_json->>'type' WHERE message_type IS NULL".formatted(table)
+        };
+        
         try (var c = ds.getConnection(); var st = c.createStatement()) {
             st.execute(ddl);
             st.execute(idx);
+            st.execute(tokenCount);
+            boolean upToDate;
+            try (var rs = st.executeQuery(hasType)) {
+                upToDate = rs.next() && rs.getBoolean(1);
+            }
+            if (!upToDate) {
+                for (String sql : upgrade) st.execute(sql);
+                Log.infof("Upgraded %s for binary message storage", table);
+            }
         } catch (Exception e) {
             Log.warn("No datasource available - chat memory disabled");
             return false;
@@ -117,5 +224,191 @@ public class StoreManager {
         }
         return true;
     }
+
+    /**
+     * One row per conversation, maintained together with the message writes, so listings
+     * never have to aggregate over the messages table.
+     * When the table is created for the first time it is back-filled from the existing messages.
+     */
+    private boolean ensureSummaryTableExists(DataSource ds, String table, String messageTable, String nameTable) {
+        String exists = "SELECT to_regclass('%s') IS NOT NULL".formatted(table);
+        
+        String ddl = """
+            CREATE TABLE IF NOT EXISTS %s (
+              memory_id     VARCHAR(200) PRIMARY KEY,
+              nice_name     VARCHAR(200) NOT NULL DEFAULT '',
+              last_activity TIMESTAMPTZ  NOT NULL DEFAULT now(),
+              message_count INTEGER      NOT NULL DEFAULT 0
+            )
+            """.formatted(table);
+
+        String idx = "CREATE INDEX IF NOT EXISTS idx_%s_activity ON %s (last_activity DESC, memory_id ASC)"
+                .formatted(table, table);
+        
+        // Full-text search over the conversation text (user prompts without RAG context, and answers)
+        String[] search = {
+            "ALTER TABLE %s ADD COLUMN IF NOT EXISTS archived_text TEXT".formatted(table),
+            "ALTER TABLE %s ADD COLUMN IF NOT EXISTS live_text TEXT".formatted(table),
+            """
+            ALTER TABLE %s ADD COLUMN IF NOT EXISTS search_vector TSVECTOR GENERATED ALWAYS AS (
+                setweight(to_tsvector('simple', nice_name), 'A')
+                || to_tsvector('%s', COALESCE(archived_text, '') || ' ' || COALESCE(live_text, ''))
+            ) STORED
+            """.formatted(table, JdbcChatMemoryStore.SEARCH_CONFIG),
+            "CREATE INDEX IF NOT EXISTS idx_%s_search ON %s USING GIN (search_vector)".formatted(table, table)
+        };
+        
+        String backfill = """
+            INSERT INTO %s (memory_id, nice_name, last_activity, message_count)
+            SELECT m.memory_id,
+                   COALESCE(n.nice_name, ''),
+                   MAX(GREATEST(m.last_modified, m.created_at)),
+                   COUNT(*)
+            FROM %s m
+            LEFT JOIN %s n ON n.memory_id = m.memory_id
+            WHERE m.memory_id IS NOT NULL
+            GROUP BY m.memory_id, n.nice_name
+            ON CONFLICT (memory_id) DO NOTHING
+            """.formatted(table, messageTable, nameTable);
+        
+        try (var c = ds.getConnection(); var st = c.createStatement()) {
+            boolean existed;
+            try (var rs = st.executeQuery(exists)) {
+                existed = rs.next() && rs.getBoolean(1);
+            }
+            st.execute(ddl);
+            st.execute(idx);
+            for (String sql : search) st.execute(sql);
+            if (!existed) {
+                int rows = st.executeUpdate(backfill);
+                Log.infof("Created %s and back-filled %d conversation(s)", table, rows);
+            }
+        } catch (Exception e) {
+            Log.warn("Could not create memory summary table: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Large repeated messages (system prompts) are stored once here, and referenced by hash from the message rows.
+     */
+    private boolean ensureBlobTableExists(DataSource ds, String table, String messageTable) {
+        String ddl = """
+            CREATE TABLE IF NOT EXISTS %s (
+              hash         VARCHAR(64)  PRIMARY KEY,
+              message_json JSONB,
+              message_bin  BYTEA,
+              created_at   TIMESTAMPTZ  NOT NULL DEFAULT now()
+            )
+            """.formatted(table);
+        
+        String column = "ALTER TABLE %s ADD COLUMN IF NOT EXISTS blob_hash VARCHAR(64)".formatted(messageTable);
+        
+        String idx = "CREATE INDEX IF NOT EXISTS idx_%s_blob ON %s (blob_hash) WHERE blob_hash IS NOT NULL"
+                .formatted(messageTable, messageTable);
+        
+        String hasFk = "SELECT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'fk_%s_blob')".formatted(messageTable);
+        String fk = "ALTER TABLE %s ADD CONSTRAINT fk_%s_blob FOREIGN KEY (blob_hash) REFERENCES %s (hash)"
+                .formatted(messageTable, messageTable, table);
+        
+        try (var c = ds.getConnection(); var st = c.createStatement()) {
+            st.execute(ddl);
+            st.execute(column);
+            st.execute(idx);
+            try (var rs = st.executeQuery(hasFk)) {
+                if (rs.next() && !rs.getBoolean(1)) st.execute(fk);
+            }
+        } catch (Exception e) {
+            Log.warn("Could not create message blob table: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Cold storage for messages that were replaced by a summary, so the full conversation can still be shown
+     */
+    private boolean ensureArchiveTableExists(DataSource ds, String table) {
+        String ddl = """
+            CREATE TABLE IF NOT EXISTS %s (
+              memory_id    VARCHAR(200) NOT NULL,
+              msg_index    INTEGER      NOT NULL,
+              message_type VARCHAR(32)  NOT NULL,
+              message_json JSONB,
+              message_bin  BYTEA,
+              archived_at  TIMESTAMPTZ  NOT NULL DEFAULT now(),
+              PRIMARY KEY (memory_id, msg_index)
+            )
+            """.formatted(table);
+
+        try (var c = ds.getConnection(); var st = c.createStatement()) {
+            st.execute(ddl);
+        } catch (Exception e) {
+            Log.warn("Could not create message archive table: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Converts the message table to monthly partitions (once). If that fails, for example because the table was too
+     * busy to lock, the table stays as it is, retention deletes row by row, and the conversion is tried again on the next start.
+     */
+    private boolean ensurePartitioning(DataSource ds) {
+        if (!partitioningEnabled) return true;
+        MessagePartitions partitions = new MessagePartitions(ds, MEMORY_TABLE);
+        try {
+            partitions.convertIfNeeded(partitionMonthsAhead);
+        } catch (Exception e) {
+            Log.warn("Could not partition the chat message table, will try again on the next start: " + e.getMessage());
+            return true;
+        }
+        partitions.ensureAhead(partitionMonthsAhead);
+        this.messagePartitions = partitions;
+        return true;
+    }
+    
+    /**
+     * Rewrites existing rows into the configured codec, in small batches, without holding up startup.
+     */
+    private void migrateCodecInBackground(JdbcChatMemoryStore store) {
+        Thread t = new Thread(() -> {
+            try {
+                long total = 0;
+                int n;
+                do {
+                    n = store.migrateCodec(codecMigrateBatchSize);
+                    total += n;
+                } while (n > 0);
+                Log.infof("CHAPPiE chat memory: migrated %d message(s) to %s", total, codecFormat);
+            } catch (RuntimeException e) {
+                Log.warn("CHAPPiE chat memory: codec migration stopped: " + e.getMessage());
+            }
+        }, "chappie-codec-migration");
+        t.setDaemon(true);
+        t.start();
+    }
+    
+    /**
+     * Makes conversations that were stored before search existed searchable, without holding up startup.
+     */
+    private void indexForSearchInBackground(JdbcChatMemoryStore store) {
+        Thread t = new Thread(() -> {
+            try {
+                long total = 0;
+                int n;
+                do {
+                    n = store.indexForSearch(searchIndexBatchSize);
+                    total += n;
+                } while (n > 0);
+                if (total > 0) Log.infof("CHAPPiE chat memory: indexed %d conversation(s) for search", total);
+            } catch (RuntimeException e) {
+                Log.warn("CHAPPiE chat memory: search indexing stopped: " + e.getMessage());
+            }
+        }, "chappie-search-indexing");
+        t.setDaemon(true);
+        t.start();
+    }
     
 }
\ No newline at end of file
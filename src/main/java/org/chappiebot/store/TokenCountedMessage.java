@@ -0,0 +1,10 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.data.message.ChatMessage;
+
+/**
+ * A chat message with its (estimated) token count, as stored alongside it
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public record TokenCountedMessage(ChatMessage message, int tokens) {
+}
@@ -0,0 +1,80 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.CustomMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+
+/**
+ * A fast, provider independent token estimate, done in one pass over the text without a tokenizer.
+ * Runs of letters and digits count as one token per 4 characters (rounded up), any other
+ * non-whitespace character counts as a token of its own. That is close to BPE tokenizers for English and code,
+ * and errs on the high side for punctuation heavy text like JSON and stack traces.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class TokenEstimator implements TokenCountEstimator {
+
+    // Role markers and separators the providers add around every message
+    private static final int PER_MESSAGE_OVERHEAD = 4;
+    // Non-text content (images, audio, pdf) gets a flat estimate
+    private static final int PER_MEDIA_CONTENT = 256;
+
+    @Override
+    public int estimateTokenCountInText(String text) {
+        if (text == null || text.isEmpty()) return 0;
+        int tokens = 0;
+        int word = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (Character.isLetterOrDigit(ch)) {
+                word++;
+                continue;
+            }
+            if (word > 0) {
+                tokens += (word + 3) / 4;
+                word = 0;
+            }
+            if (!Character.isWhitespace(ch)) tokens++;
+        }
+        if (word > 0) tokens += (word + 3) / 4;
+        return tokens;
+    }
+
+    @Override
+    public int estimateTokenCountInMessage(ChatMessage message) {
+        if (message == null) return 0;
+        int tokens = PER_MESSAGE_OVERHEAD;
+        if (message instanceof SystemMessage sm) {
+            tokens += estimateTokenCountInText(sm.text());
+        } else if (message instanceof UserMessage um) {
+            for (Content content : um.contents()) {
+                tokens += content instanceof TextContent tc ? estimateTokenCountInText(tc.text()) : PER_MEDIA_CONTENT;
+            }
+        } else if (message instanceof AiMessage am) {
+            tokens += estimateTokenCountInText(am.text());
+            if (am.hasToolExecutionRequests()) {
+                for (ToolExecutionRequest r : am.toolExecutionRequests()) {
+                    tokens += estimateTokenCountInText(r.name()) + estimateTokenCountInText(r.arguments());
+                }
+            }
+        } else if (message instanceof ToolExecutionResultMessage tr) {
+            tokens += estimateTokenCountInText(tr.toolName()) + estimateTokenCountInText(tr.text());
+        } else if (message instanceof CustomMessage cm) {
+            tokens += estimateTokenCountInText(String.valueOf(cm.attributes()));
+        }
+        return tokens;
+    }
+
+    @Override
+    public int estimateTokenCountInMessages(Iterable<ChatMessage> messages) {
+        int tokens = 0;
+        for (ChatMessage m : messages) tokens += estimateTokenCountInMessage(m);
+        return tokens;
+    }
+}
@@ -0,0 +1,102 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.memory.ChatMemory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chat memory that keeps as many of the most recent messages as fit in a token budget.
+ * Token counts are estimated once, when a message is added, and stored with the message,
+ * so trimming the window only adds up the stored counts.
+ *
+ * The system message is kept (first) and not evicted. The newest message is never evicted, even when it alone
+ * is over the budget. Tool results are evicted together with the AI message that requested them.
+ * @author Phillip Kruger (phillip.kruger@gmail.com)
+ */
+public class TokenWindowJdbcChatMemory implements ChatMemory {
+
+    private final Object id;
+    private final int maxTokens;
+    private final JdbcChatMemoryStore store;
+    private final TokenEstimator tokenEstimator;
+
+    public TokenWindowJdbcChatMemory(Object id, int maxTokens, JdbcChatMemoryStore store, TokenEstimator tokenEstimator) {
+        this.id = id;
+        this.maxTokens = maxTokens;
+        this.store = store;
+        this.tokenEstimator = tokenEstimator;
+    }
+
+    @Override
+    public Object id() {
+        return id;
+    }
+
+    @Override
+    public void add(ChatMessage message) {
+        List<TokenCountedMessage> messages = new ArrayList<>(store.getTokenCountedMessages(String.valueOf(id)));
+        TokenCountedMessage counted = new TokenCountedMessage(message, tokenEstimator.estimateTokenCountInMessage(message));
+
+        if (message instanceof SystemMessage) {
+            int existing = indexOfSystemMessage(messages);
+            if (existing >= 0) {
+                if (messages.get(existing).message().equals(message)) {
+                    return; // Same system message, nothing changes
+                }
+                messages.remove(existing);
+            }
+            messages.add(0, counted);
+        } else {
+            messages.add(counted);
+        }
+
+        evict(messages);
+        store.updateTokenCountedMessages(String.valueOf(id), messages);
+    }
+
+    @Override
+    public List<ChatMessage> messages() {
+        return store.getMessages(id);
+    }
+
+    @Override
+    public void clear() {
+        store.deleteMessages(id);
+    }
+
+    private void evict(List<TokenCountedMessage> messages) {
+        int total = 0;
+        for (TokenCountedMessage m : messages) total += m.tokens();
+
+        while (total > maxTokens) {
+            int oldest = indexOfOldestEvictable(messages);
+            if (oldest < 0) break;
+            TokenCountedMessage removed = messages.remove(oldest);
+            total -= removed.tokens();
+            // Results of the tool calls requested by the removed message make no sense on their own
+            if (removed.message() instanceof AiMessage ai && ai.hasToolExecutionRequests()) {
+                while (oldest < messages.size() - 1 && messages.get(oldest).message() instanceof ToolExecutionResultMessage) {
+                    total -= messages.remove(oldest).tokens();
+                }
+            }
+        }
+    }
+
+    private static int indexOfOldestEvictable(List<TokenCountedMessage> messages) {
+        for (int i = 0; i < messages.size() - 1; i++) {
+            if (!(messages.get(i).message() instanceof SystemMessage)) return i;
+        }
+        return -1;
+    }
+
+    private static int indexOfSystemMessage(List<TokenCountedMessage> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i).message() instanceof SystemMessage) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,27 @@
+package org.chappiebot;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for building the assistants once per configuration.
+ */
+class AssistantRegistryTest {
+
+    @Test
+    void testBuiltOncePerConfiguration() {
+        AssistantRegistry registry = new AssistantRegistry();
+        AtomicInteger builds = new AtomicInteger();
+
+        Object first = registry.get(Object.class, "model", true, "none", () -> new Object[] {builds.incrementAndGet()});
+        Object again = registry.get(Object.class, "model", true, "none", () -> new Object[] {builds.incrementAndGet()});
+        Object withoutRag = registry.get(Object.class, "model", false, "none", () -> new Object[] {builds.incrementAndGet()});
+
+        assertSame(first, again);
+        assertNotSame(first, withoutRag);
+        assertEquals(2, builds.get());
+        assertEquals(3, registry.stats().stream().mapToLong(AssistantRegistry.Stats::lookups).sum());
+    }
+}
@@ -0,0 +1,82 @@
+package org.chappiebot;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for the message templates of GenericInput, against the replace loop it took over from.
+ *
+ * Run the benchmark with: mvn test -Dtest=MessageTemplateTest -Dchappie.benchmark=true
+ */
+class MessageTemplateTest {
+
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 100_000;
+
+    @Test
+    void testSameAsReplace() {
+        Map<String, String> variables = Map.of("name", "World", "lang", "Java", "empty", "");
+        for (String template : new String[] {
+                "", "no placeholders", "Hello {{name}}!", "{{name}}{{name}}", "{{lang}} {{missing}} {{name}}",
+                "{{{name}}}", "{{ {{name}}", "}}{{name}}{{", "{{empty}}x", "{{name}", "{name}}", "{{}}" }) {
+            assertEquals(replaceLoop(template, variables), MessageTemplate.compile(template).render(variables), template);
+        }
+    }
+
+    @Test
+    void testValuesAreNotRendered() {
+        assertEquals("{{b}} 2", MessageTemplate.compile("{{a}} {{b}}").render(Map.of("a", "{{b}}", "b", "2")));
+    }
+
+    @Test
+    void testCompiledOnce() {
+        String template = "Hello {{name}} " + System.nanoTime();
+        assertSame(MessageTemplate.of(template), MessageTemplate.of(template));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "chappie.benchmark", matches = "true")
+    void benchmark() {
+        StringBuilder template = new StringBuilder();
+        Map<String, String> variables = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            template.append("Some instructions for the model about part ").append(i).append(" of the task. ".repeat(20));
+            template.append("{{var").append(i).append("}}\n");
+            variables.put("var" + i, "value " + i);
+        }
+        for (int i = 8; i < 16; i++) {
+            variables.put("var" + i, "unused " + i);
+        }
+        String t = template.toString();
+        MessageTemplate compiled = MessageTemplate.of(t);
+        assertEquals(replaceLoop(t, variables), compiled.render(variables));
+
+        System.out.println("\n========================================");
+        System.out.println("MESSAGE TEMPLATE BENCHMARK (" + t.length() + " chars, " + variables.size() + " variables)");
+        System.out.println("========================================");
+        System.out.printf("%-22s %16s%n", "render", "ns/render");
+        System.out.printf("%-22s %16d%n", "replace loop (old)", time(() -> replaceLoop(t, variables)));
+        System.out.printf("%-22s %16d%n", "compiled, cached", time(() -> MessageTemplate.of(t).render(variables)));
+        System.out.printf("%-22s %16d%n", "compiled", time(() -> compiled.render(variables)));
+        System.out.println("========================================\n");
+    }
+
+    private static long time(Runnable render) {
+        for (int i = 0; i < WARMUP; i++) render.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) render.run();
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    // How GenericInput used to render
+    private static String replaceLoop(String result, Map<String, String> variables) {
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            result = result.replace("{{" + entry.getKey() + "}}", entry.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+package org.chappiebot.assist;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for the background assist jobs: the bounded queue, cancelling and expiring finished jobs.
+ */
+class AssistJobsTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+    private AssistJobs jobs;
+
+    @AfterEach
+    void shutdown() {
+        release.countDown();
+        jobs.shutdown();
+    }
+
+    @Test
+    void testRejectsWhenQueueIsFull() throws Exception {
+        jobs = jobs(1, 1, Duration.ofHours(1));
+        AssistJob running = submit();
+        awaitStatus(running, AssistJob.Status.RUNNING);
+        AssistJob queued = submit();
+
+        assertTrue(jobs.submit(null, null, null, null).isEmpty());
+        assertEquals(AssistJob.Status.QUEUED, jobs.get(queued.id()).orElseThrow().status());
+
+        release.countDown();
+        awaitStatus(queued, AssistJob.Status.DONE);
+        assertTrue(jobs.submit(null, null, null, null).isPresent());
+    }
+
+    @Test
+    void testCancelWhileQueued() throws Exception {
+        jobs = jobs(1, 1, Duration.ofHours(1));
+        AssistJob running = submit();
+        awaitStatus(running, AssistJob.Status.RUNNING);
+        AssistJob queued = submit();
+
+        assertEquals(AssistJob.Status.CANCELLED, jobs.cancel(queued.id()).orElseThrow().status());
+        // Its place in the queue is free again, while the first job still runs
+        AssistJob next = submit();
+        release.countDown();
+        awaitStatus(running, AssistJob.Status.DONE);
+        awaitStatus(next, AssistJob.Status.DONE);
+
+        // Never started
+        assertEquals(2, calls.get());
+        AssistJob cancelled = jobs.get(queued.id()).orElseThrow();
+        assertEquals(AssistJob.Status.CANCELLED, cancelled.status());
+        assertNull(cancelled.startedAt());
+    }
+
+    @Test
+    void testCancelWhileRunning() throws Exception {
+        jobs = jobs(1, 1, Duration.ofHours(1));
+        AssistJob running = submit();
+        awaitStatus(running, AssistJob.Status.RUNNING);
+
+        assertEquals(AssistJob.Status.CANCELLED, jobs.cancel(running.id()).orElseThrow().status());
+        // The running call is interrupted, and what it returns is dropped
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        awaitStatus(submit(), AssistJob.Status.DONE);
+
+        AssistJob cancelled = jobs.get(running.id()).orElseThrow();
+        assertEquals(AssistJob.Status.CANCELLED, cancelled.status());
+        assertNull(cancelled.answer());
+        assertTrue(jobs.cancel("unknown").isEmpty());
+    }
+
+    @Test
+    void testFinishedJobsExpire() throws Exception {
+        jobs = jobs(1, 1, Duration.ofMillis(50));
+        release.countDown();
+        AssistJob job = submit();
+        awaitStatus(job, AssistJob.Status.DONE);
+
+        // Removed by the sweep, without another submit
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (jobs.get(job.id()).isPresent() && System.nanoTime() < deadline) Thread.sleep(10);
+        assertTrue(jobs.get(job.id()).isEmpty());
+    }
+
+    private AssistJob submit() {
+        return jobs.submit(null, null, null, null).orElseThrow();
+    }
+
+    private void awaitStatus(AssistJob job, AssistJob.Status status) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            Optional<AssistJob> current = jobs.get(job.id());
+            if (current.isPresent() && current.get().status() == status) return;
+            Thread.sleep(5);
+        }
+        fail("Job " + job.id() + " did not get " + status + ", it is " + jobs.get(job.id()).map(AssistJob::status).orElse(null));
+    }
+
+    // A model call that takes until it is released
+    private AssistJobs jobs(int workers, int queueSize, Duration ttl) {
+        AssistJobs jobs = new AssistJobs() {
+            @Override
+            AssistService.Result assist(AssistInput input, String memoryId, String cacheMode) {
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    Thread.currentThread().interrupt();
+                }
+                return new AssistService.Result("memory", Map.of("answer", "42"), null);
+            }
+        };
+        jobs.workers = workers;
+        jobs.queueSize = queueSize;
+        jobs.ttl = ttl;
+        jobs.init();
+        return jobs;
+    }
+}
@@ -0,0 +1,85 @@
+package org.chappiebot.assist;
+
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.chappiebot.assist.StubModelResource.MODEL_DELAY_MILLIS;
+import static org.chappiebot.assist.StubModelResource.WORKER_THREADS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Shows how many /api/assist requests can wait for a slow model at once. The model is a local stub that takes a while
+ * to answer, and the worker pool is kept small. On Java 21+ the endpoint runs on virtual threads, so more requests
+ * than there are worker threads reach the model at once; on Java 17 there are no virtual threads, the endpoint runs
+ * on worker threads, and the worker pool is the limit.
+ *
+ * Run with: mvn test -Dtest=AssistLoadTest -Dchappie.benchmark=true (needs Docker)
+ * To see pinning, on Java 21 to 23 add -Djdk.tracePinnedThreads=short
+ */
+@QuarkusTest
+@QuarkusTestResource(value = StubModelResource.class, restrictToAnnotatedClass = true)
+@EnabledIfSystemProperty(named = "chappie.benchmark", matches = "true")
+public class AssistLoadTest {
+
+    private static final int REQUESTS = 400;
+
+    @TestHTTPResource("/api/assist")
+    URI assist;
+
+    @Test
+    void loadTest() {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+
+        StubModelResource.maxInFlight.set(0);
+        long start = System.nanoTime();
+        List<CompletableFuture<HttpResponse<String>>> calls = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            // Different questions, and no cache, so every request goes to the model
+            String body = """
+                {"genericInput":{"programmingLanguage":"Java","systemmessageTemplate":"You help with Quarkus",
+                 "usermessageTemplate":"Question %d"}}
+                """.formatted(i);
+            HttpRequest request = HttpRequest.newBuilder(assist)
+                    .timeout(Duration.ofMinutes(5))
+                    .header("Content-Type", "application/json")
+                    .header("X-Chappie-Cache", "bypass")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            calls.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> call : calls) {
+            HttpResponse<String> response = call.join();
+            assertEquals(200, response.statusCode(), response.body());
+            assertTrue(response.body().contains("ok"), response.body());
+        }
+        long millis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        int maxInFlight = StubModelResource.maxInFlight.get();
+
+        System.out.println("\n========================================");
+        System.out.println("CONCURRENT /api/assist (" + REQUESTS + " requests, model answers in " + MODEL_DELAY_MILLIS + "ms, "
+                + WORKER_THREADS + " worker threads, Java " + Runtime.version().feature() + ")");
+        System.out.println("========================================");
+        System.out.printf("%-20s %d%n", "max in flight", maxInFlight);
+        System.out.printf("%-20s %d%n", "total ms", millis);
+
+        if (Runtime.version().feature() >= 21) {
+            assertTrue(maxInFlight > WORKER_THREADS, "Requests are still held by worker threads");
+        } else {
+            assertTrue(maxInFlight <= WORKER_THREADS);
+        }
+    }
+}
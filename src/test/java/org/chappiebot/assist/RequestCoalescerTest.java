@@ -0,0 +1,100 @@
+package org.chappiebot.assist;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for sharing one model call between identical requests in flight.
+ */
+class RequestCoalescerTest {
+
+    @Test
+    void testConcurrentRequestsShareOneCall() throws Exception {
+        RequestCoalescer coalescer = coalescer(Duration.ofSeconds(5));
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<RequestCoalescer.Flight> first = CompletableFuture.supplyAsync(() -> coalescer.run("key", () -> {
+            calls.incrementAndGet();
+            running.countDown();
+            await(release);
+            return RequestCoalescer.answer(Map.of("answer", "42"), List.of());
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<RequestCoalescer.Flight> second = CompletableFuture.supplyAsync(() -> coalescer.run("key", () -> {
+            calls.incrementAndGet();
+            return RequestCoalescer.answer(Map.of("answer", "other"), List.of());
+        }));
+        while (coalescer.getCoalesced() == 0) Thread.sleep(5);
+        release.countDown();
+
+        assertFalse(first.get(5, TimeUnit.SECONDS).shared());
+        assertTrue(second.get(5, TimeUnit.SECONDS).shared());
+        assertEquals("42", second.get().answer().answer().get("answer"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testNothingIsKeptAfterTheCall() {
+        RequestCoalescer coalescer = coalescer(Duration.ofSeconds(5));
+        coalescer.run("key", () -> RequestCoalescer.answer(Map.of("answer", "1"), List.of()));
+        RequestCoalescer.Flight again = coalescer.run("key", () -> RequestCoalescer.answer(Map.of("answer", "2"), List.of()));
+        assertFalse(again.shared());
+        assertEquals("2", again.answer().answer().get("answer"));
+    }
+
+    @Test
+    void testErrorIsNotKept() {
+        RequestCoalescer coalescer = coalescer(Duration.ofSeconds(5));
+        assertThrows(IllegalStateException.class, () -> coalescer.run("key", () -> {
+            throw new IllegalStateException("boom");
+        }));
+        assertFalse(coalescer.run("key", () -> RequestCoalescer.answer(Map.of(), List.of())).shared());
+    }
+
+    @Test
+    void testWaitIsBoundedByTheTimeout() throws Exception {
+        RequestCoalescer coalescer = coalescer(Duration.ofMillis(50));
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<RequestCoalescer.Flight> first = CompletableFuture.supplyAsync(() -> coalescer.run("key", () -> {
+            running.countDown();
+            await(release);
+            return RequestCoalescer.answer(Map.of("answer", "slow"), List.of());
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        // The leader hangs, so this one makes its own call
+        RequestCoalescer.Flight second = coalescer.run("key", () -> RequestCoalescer.answer(Map.of("answer", "own"), List.of()));
+        assertFalse(second.shared());
+        assertEquals("own", second.answer().answer().get("answer"));
+        assertEquals(0, coalescer.getCoalesced());
+
+        release.countDown();
+        assertEquals("slow", first.get(5, TimeUnit.SECONDS).answer().answer().get("answer"));
+    }
+
+    private static RequestCoalescer coalescer(Duration timeout) {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        coalescer.timeout = timeout;
+        return coalescer;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.chappiebot.assist;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.quarkus.test.common.QuarkusTestResourceLifecycleManager;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+/**
+ * A local OpenAI compatible model that takes a while to answer, and counts how many calls it has in flight at once.
+ * Also starts a database for the chat memory, as the server needs one to start.
+ */
+public class StubModelResource implements QuarkusTestResourceLifecycleManager {
+
+    static final long MODEL_DELAY_MILLIS = 2000;
+    // Small, so it is clear whether requests are held by worker threads
+    static final int WORKER_THREADS = 50;
+    static final int MAX_IN_FLIGHT = 1000;
+
+    static final AtomicInteger inFlight = new AtomicInteger();
+    static final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private PostgreSQLContainer<?> db;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @Override
+    public Map<String, String> start() {
+        DockerImageName image = DockerImageName.parse(System.getProperty("store.image", "pgvector/pgvector:pg16"))
+                .asCompatibleSubstituteFor("postgres");
+        db = new PostgreSQLContainer<>(image)
+                .withDatabaseName("postgres")
+                .withUsername("postgres")
+                .withPassword("postgres");
+        db.start();
+
+        try {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), MAX_IN_FLIGHT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start the stub model", e);
+        }
+        executor = Executors.newCachedThreadPool();
+        server.createContext("/", StubModelResource::slowAnswer);
+        server.setExecutor(executor);
+        server.start();
+
+        Map<String, String> props = new HashMap<>();
+        props.put("quarkus.datasource.devservices.enabled", "false");
+        props.put("quarkus.datasource.jdbc.url", db.getJdbcUrl());
+        props.put("quarkus.datasource.username", db.getUsername());
+        props.put("quarkus.datasource.password", db.getPassword());
+        props.put("quarkus.thread-pool.max-threads", String.valueOf(WORKER_THREADS));
+        props.put("chappie.openai.base-url", "http://127.0.0.1:" + server.getAddress().getPort() + "/v1");
+        props.put("chappie.openai.api-key", "test");
+        props.put("chappie.openai.model-name", "stub");
+        props.put("chappie.rag.enabled", "false");
+        props.put("chappie.log.request", "false");
+        props.put("chappie.log.response", "false");
+        props.put("chappie.bulkhead.max-in-flight", String.valueOf(MAX_IN_FLIGHT));
+        props.put("chappie.bulkhead.queue", String.valueOf(MAX_IN_FLIGHT));
+        return props;
+    }
+
+    private static void slowAnswer(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(MODEL_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        byte[] body = """
+            {"id":"1","object":"chat.completion","created":1,"model":"stub",
+             "choices":[{"index":0,"message":{"role":"assistant","content":"{\\"answer\\":\\"ok\\"}"},"finish_reason":"stop"}],
+             "usage":{"prompt_tokens":1,"completion_tokens":1,"total_tokens":2}}
+            """.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+        if (db != null) db.stop();
+    }
+}
@@ -0,0 +1,61 @@
+package org.chappiebot.assist;
+
+import dev.langchain4j.model.input.PromptTemplate;
+import java.util.Map;
+import org.chappiebot.GenericInput;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for rendering the system message of the assistants.
+ */
+class SystemPromptsTest {
+
+    private static final String SCHEMA = "Respond with a JSON object with the fields answer and niceName.";
+
+    @Test
+    void testSameAsTheTemplate() {
+        SystemPrompts prompts = systemPrompts();
+        GenericInput input = new GenericInput("Java", "21", "3.31.1", "Explain {{thing}}", "Hi", Map.of("thing", "CDI"));
+
+        String expected = Assistant.SYSTEM_MESSAGE
+                .replace("{{programmingLanguage}}", "Java")
+                .replace("{{programmingLanguageVersion}}", "21")
+                .replace("{{quarkusVersion}}", "3.31.1")
+                .replace("{{responseSchemaPrompt}}", SCHEMA)
+                .replace("{{systemmessage}}", "Explain CDI");
+        assertEquals(expected, prompts.render(input, SCHEMA));
+    }
+
+    @Test
+    void testSystemMessageIsAppendedLast() {
+        SystemPrompts prompts = systemPrompts();
+        String first = prompts.render(new GenericInput("Java", "21", "3.31.1", "First", "Hi", Map.of()), null);
+        String second = prompts.render(new GenericInput("Java", "21", "3.31.1", "Second", "Hi", Map.of()), null);
+
+        String prefix = first.substring(0, first.indexOf("First"));
+        assertTrue(second.startsWith(prefix));
+        assertTrue(prefix.endsWith("from a Quarkus 3.31.1 application.\n\n"));
+    }
+
+    @Test
+    void testNoSystemMessage() {
+        String prompt = systemPrompts().render(new GenericInput("Kotlin", null, "3.31.1", null, "Hi", null), null);
+        assertTrue(prompt.contains("The code is Kotlin  from a Quarkus 3.31.1 application."));
+        assertFalse(prompt.contains("{{"));
+    }
+
+    @Test
+    void testUserMessageAsTheAssistantRendersIt() {
+        String userMessage = "Why is {{name}} null? $1 \\n";
+        String expected = PromptTemplate.from(Assistant.USER_MESSAGE).apply(Map.of("usermessage", userMessage)).text();
+        assertEquals(expected, systemPrompts().renderUserMessage(userMessage));
+    }
+
+    private static SystemPrompts systemPrompts() {
+        SystemPrompts prompts = new SystemPrompts();
+        prompts.maxSize = 256;
+        return prompts;
+    }
+}
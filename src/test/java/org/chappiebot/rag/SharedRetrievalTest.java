@@ -0,0 +1,91 @@
+package org.chappiebot.rag;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.store.embedding.filter.comparison.ContainsString;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for sharing retrievals between the requests of a batch.
+ */
+class SharedRetrievalTest {
+
+    @Test
+    void testSameExtensionAndQueryRetrievesOnce() {
+        SharedRetrieval shared = new SharedRetrieval(Duration.ofSeconds(5));
+        AtomicInteger retrievals = new AtomicInteger();
+        List<Content> contents = List.of(Content.from(TextSegment.from("docs")));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(contents, shared.retrieve(new ContainsString("extensions_csv_padded", ",rest,"), Query.from("q"), query -> {
+                retrievals.incrementAndGet();
+                return contents;
+            }));
+        }
+        assertEquals(1, retrievals.get());
+        assertEquals(2, shared.getShared());
+    }
+
+    @Test
+    void testOtherExtensionRetrievesAgain() {
+        SharedRetrieval shared = new SharedRetrieval(Duration.ofSeconds(5));
+        AtomicInteger retrievals = new AtomicInteger();
+        shared.retrieve(new ContainsString("extensions_csv_padded", ",rest,"), Query.from("q"), query -> {
+            retrievals.incrementAndGet();
+            return List.of();
+        });
+        shared.retrieve(new ContainsString("extensions_csv_padded", ",cdi,"), Query.from("q"), query -> {
+            retrievals.incrementAndGet();
+            return List.of();
+        });
+        shared.retrieve(null, Query.from("q"), query -> {
+            retrievals.incrementAndGet();
+            return List.of();
+        });
+        assertEquals(3, retrievals.get());
+        assertEquals(0, shared.getShared());
+    }
+
+    @Test
+    void testWaitIsBoundedByTheTimeout() throws Exception {
+        SharedRetrieval shared = new SharedRetrieval(Duration.ofMillis(50));
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<List<Content>> first = CompletableFuture.supplyAsync(() -> shared.retrieve(null, Query.from("q"), query -> {
+            running.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of();
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        // The first retrieval hangs, so this one retrieves for itself
+        List<Content> own = List.of(Content.from(TextSegment.from("own")));
+        assertEquals(own, shared.retrieve(null, Query.from("q"), query -> own));
+        assertEquals(0, shared.getShared());
+
+        release.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    void testFailureIsNotShared() {
+        SharedRetrieval shared = new SharedRetrieval(Duration.ofSeconds(5));
+        assertThrows(IllegalStateException.class, () -> shared.retrieve(null, Query.from("q"), query -> {
+            throw new IllegalStateException("boom");
+        }));
+        assertTrue(shared.retrieve(null, Query.from("q"), query -> List.of()).isEmpty());
+    }
+}
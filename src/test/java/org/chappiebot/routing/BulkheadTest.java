@@ -0,0 +1,149 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for the per provider bulkhead.
+ */
+class BulkheadTest {
+
+    @Test
+    void testRejectsWhenQueueIsFull() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 0, Duration.ofSeconds(5));
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> bulkhead.call(() -> {
+            running.countDown();
+            await(release);
+            return "first";
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        ProviderBusyException busy = assertThrows(ProviderBusyException.class, () -> bulkhead.call(() -> "second"));
+        assertTrue(busy.getRetryAfter().toSeconds() >= 1);
+        assertEquals(1, bulkhead.stats().inFlight());
+
+        release.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("third", bulkhead.call(() -> "third"));
+
+        Bulkhead.Stats stats = bulkhead.stats();
+        assertEquals(2, stats.admitted());
+        assertEquals(1, stats.rejected());
+        assertEquals(0, stats.inFlight());
+    }
+
+    @Test
+    void testQueuedCallWaitsForAPlace() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1, Duration.ofSeconds(5));
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> bulkhead.call(() -> {
+            running.countDown();
+            await(release);
+            return "first";
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> bulkhead.call(() -> "second"));
+        while (bulkhead.stats().queued() == 0) Thread.sleep(5);
+        release.countDown();
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals(0, bulkhead.stats().rejected());
+    }
+
+    @Test
+    void testStreamHoldsItsPlaceUntilItEnds() {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 0, Duration.ofSeconds(5));
+        List<StreamingChatResponseHandler> open = new ArrayList<>();
+        StreamingChatModel streaming = new BulkheadStreamingChatModel(new StreamingChatModel() {
+            @Override
+            public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+                open.add(handler);
+            }
+        }, bulkhead);
+        ChatRequest request = ChatRequest.builder().messages(UserMessage.from("hi")).build();
+        StreamingChatResponseHandler ignore = new StreamingChatResponseHandler() {
+            @Override
+            public void onCompleteResponse(ChatResponse completeResponse) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+            }
+        };
+
+        streaming.chat(request, ignore);
+        assertEquals(1, bulkhead.stats().inFlight());
+        // Chat and streaming calls share the place
+        assertThrows(ProviderBusyException.class, () -> bulkhead.call(() -> "chat"));
+        assertThrows(ProviderBusyException.class, () -> streaming.chat(request, ignore));
+
+        open.get(0).onCompleteResponse(ChatResponse.builder().aiMessage(AiMessage.from("done")).build());
+        assertEquals(0, bulkhead.stats().inFlight());
+
+        streaming.chat(request, ignore);
+        open.get(1).onError(new RuntimeException("failed"));
+        open.get(1).onError(new RuntimeException("failed again"));
+        assertEquals(0, bulkhead.stats().inFlight());
+
+        // A client that goes away cancels the stream, which then never completes
+        streaming.chat(request, new StreamingChatResponseHandler() {
+            @Override
+            public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                context.streamingHandle().cancel();
+            }
+
+            @Override
+            public void onCompleteResponse(ChatResponse completeResponse) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+            }
+        });
+        AtomicBoolean cancelled = new AtomicBoolean();
+        open.get(2).onPartialResponse(new PartialResponse("partial"), new PartialResponseContext(new StreamingHandle() {
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled.get();
+            }
+        }));
+        assertTrue(cancelled.get());
+        assertEquals(0, bulkhead.stats().inFlight());
+        assertEquals(3, bulkhead.stats().admitted());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.chappiebot.rag.RagContext;
+import org.chappiebot.store.TokenEstimator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for fitting requests into the context window: oldest history first, then RAG chunks, then an error.
+ */
+class PromptBudgetTest {
+
+    private final TokenEstimator estimator = new TokenEstimator();
+
+    @Test
+    void testFittingRequestIsUnchanged() {
+        ChatRequest request = ChatRequest.builder().messages(conversation(2, "question", 0)).build();
+        assertSame(request, new PromptBudget(estimator, "m", 10_000, 1000).fit(request));
+    }
+
+    @Test
+    void testOldestTurnsAreLeftOutFirst() {
+        List<ChatMessage> messages = conversation(5, "question", 2);
+        int all = estimator.estimateTokenCountInMessages(messages);
+        int oneTurn = estimator.estimateTokenCountInMessage(messages.get(1)) + estimator.estimateTokenCountInMessage(messages.get(2));
+        PromptBudget budget = new PromptBudget(estimator, "m", all - oneTurn + 100, 100);
+
+        List<ChatMessage> fitted = budget.fit(ChatRequest.builder().messages(messages).build()).messages();
+
+        assertEquals(messages.size() - 2, fitted.size());
+        assertEquals(messages.get(0), fitted.get(0));
+        assertEquals(messages.get(3), fitted.get(1)); // the second turn, starting with its user message
+        assertEquals(messages.get(messages.size() - 1), fitted.get(fitted.size() - 1)); // the RAG chunks are all there
+        assertEquals(1, budget.stats().trimmed());
+        assertEquals(2, budget.stats().droppedMessages());
+        assertEquals(0, budget.stats().droppedChunks());
+    }
+
+    @Test
+    void testRagChunksAreLeftOutAfterTheHistory() {
+        List<ChatMessage> messages = conversation(3, "question", 3);
+        UserMessage last = (UserMessage) messages.get(messages.size() - 1);
+        String withOneChunk = RagContext.withoutLastChunk(RagContext.withoutLastChunk(last.singleText()));
+        int max = estimator.estimateTokenCountInMessage(messages.get(0)) + estimator.estimateTokenCountInMessage(UserMessage.from(withOneChunk));
+        PromptBudget budget = new PromptBudget(estimator, "m", max + 100, 100);
+
+        List<ChatMessage> fitted = budget.fit(ChatRequest.builder().messages(messages).build()).messages();
+
+        assertEquals(List.of(messages.get(0), UserMessage.from(withOneChunk)), fitted);
+        assertTrue(withOneChunk.contains("chunk 0") && !withOneChunk.contains("chunk 1"));
+        assertEquals(2, budget.stats().droppedChunks());
+    }
+
+    @Test
+    void testTooLargeFailsHere() {
+        List<ChatMessage> messages = conversation(3, "question ".repeat(1000), 2);
+        PromptBudget budget = new PromptBudget(estimator, "m", 1100, 100);
+        PromptTooLargeException e = assertThrows(PromptTooLargeException.class,
+                () -> budget.fit(ChatRequest.builder().messages(messages).build()));
+        assertEquals(1000, e.getMaxTokens());
+        assertEquals(1, budget.stats().rejected());
+    }
+
+    @Test
+    void testContextLimits() {
+        assertEquals(128_000, PromptBudget.contextLimit("gpt-4o-mini", Map.of(), 8000));
+        assertEquals(200_000, PromptBudget.contextLimit("CLAUDE_3_5_SONNET_20240620", Map.of(), 8000));
+        assertEquals(8000, PromptBudget.contextLimit("mistral", Map.of(), 8000));
+        assertEquals(64_000, PromptBudget.contextLimit("gpt-4o-mini", Map.of("gpt-4o-mini", 64_000), 8000));
+    }
+
+    @Test
+    void testRagContextBlock() {
+        String text = RagContext.inject("How?", "chunk 0" + RagContext.CHUNK_SEPARATOR + "chunk 1");
+        assertEquals("""
+            How?
+
+            [RAG CONTEXT]
+            Use this as a guide only. It may be incomplete or irrelevant.
+            If it conflicts with known facts or user intent, explain and prefer correctness.
+            If irrelevant, say so and answer without it.
+
+            <context>
+            chunk 0
+            ---
+            chunk 1
+            </context>
+            [/RAG CONTEXT]
+            """, text);
+        String oneChunk = RagContext.withoutLastChunk(text);
+        assertEquals(RagContext.inject("How?", "chunk 0"), oneChunk);
+        assertEquals("How?", RagContext.withoutLastChunk(oneChunk));
+        assertNull(RagContext.withoutLastChunk("How?"));
+    }
+
+    // A system message, turns of history, and the current question with RAG chunks
+    private static List<ChatMessage> conversation(int turns, String question, int chunks) {
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(SystemMessage.from("You are CHAPPiE"));
+        for (int i = 0; i < turns - 1; i++) {
+            messages.add(UserMessage.from("earlier " + question + " " + i));
+            messages.add(AiMessage.from("{\"answer\":\"" + "an answer with some code in it ".repeat(20) + i + "\"}"));
+        }
+        List<String> docs = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) docs.add("chunk " + i + " " + "documentation text ".repeat(30));
+        messages.add(UserMessage.from(chunks == 0 ? question : RagContext.inject(question, String.join(RagContext.CHUNK_SEPARATOR, docs))));
+        return messages;
+    }
+}
@@ -0,0 +1,135 @@
+package org.chappiebot.routing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.openai.OpenAiChatModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for routing over several providers, against local stub OpenAI compatible servers.
+ */
+class RoutingChatModelTest {
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        servers.forEach(s -> s.stop(0));
+    }
+
+    @Test
+    void testFailover() throws IOException {
+        Stub broken = new Stub("a", 0, 500);
+        Stub working = new Stub("b", 0, 200);
+        try (RoutingChatModel model = routing(false, broken, working)) {
+            assertEquals("b", model.chat("Hello"));
+            ProviderRoute.Stats a = model.stats().get(0);
+            assertEquals(1, a.failures());
+            assertEquals(1, model.stats().get(1).requests());
+        }
+    }
+
+    @Test
+    void testUnhealthyProviderIsSkipped() throws IOException {
+        Stub broken = new Stub("a", 0, 500);
+        Stub working = new Stub("b", 0, 200);
+        try (RoutingChatModel model = routing(false, broken, working)) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals("b", model.chat("Hello"));
+            }
+            // Skipped after 2 consecutive failures
+            assertEquals(2, broken.calls.get());
+            assertFalse(model.stats().get(0).healthy());
+        }
+    }
+
+    @Test
+    void testHedging() throws IOException {
+        Stub slow = new Stub("a", 0, 200);
+        Stub fast = new Stub("b", 0, 200);
+        try (RoutingChatModel model = routing(true, slow, fast)) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals("a", model.chat("Hello"));
+            }
+            slow.delayMillis = 3000;
+            long start = System.nanoTime();
+            assertEquals("b", model.chat("Hello"));
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 2000);
+            assertEquals(1, model.stats().get(0).hedges());
+            assertEquals(0, model.stats().get(0).failures());
+        }
+    }
+
+    private RoutingChatModel routing(boolean hedging, Stub... stubs) {
+        List<ProviderRoute> routes = new ArrayList<>();
+        for (Stub stub : stubs) {
+            routes.add(new ProviderRoute(stub.answer, stub.model()));
+        }
+        return new RoutingChatModel(routes, hedging, 5, 2, Duration.ofMinutes(1));
+    }
+
+    /**
+     * Answers every chat completion with its own name, after a delay, or fails with the status
+     */
+    private class Stub {
+        final String answer;
+        final int status;
+        final AtomicInteger calls = new AtomicInteger();
+        volatile long delayMillis;
+        final HttpServer server;
+
+        Stub(String answer, long delayMillis, int status) throws IOException {
+            this.answer = answer;
+            this.delayMillis = delayMillis;
+            this.status = status;
+            this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this::handle);
+            server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+            server.start();
+            servers.add(server);
+        }
+
+        ChatModel model() {
+            return OpenAiChatModel.builder()
+                    .baseUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/v1")
+                    .apiKey("test")
+                    .modelName("stub")
+                    .maxRetries(0)
+                    .timeout(Duration.ofSeconds(10))
+                    .build();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            calls.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String body = status == 200 ? """
+                {"id":"1","object":"chat.completion","created":1,"model":"stub",
+                 "choices":[{"index":0,"message":{"role":"assistant","content":"%s"},"finish_reason":"stop"}],
+                 "usage":{"prompt_tokens":1,"completion_tokens":1,"total_tokens":2}}
+                """.formatted(answer) : "{\"error\":{\"message\":\"stub failure\"}}";
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.chappiebot.routing;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for routing streamed requests over several providers.
+ */
+class RoutingStreamingChatModelTest {
+
+    private static final ChatRequest REQUEST = ChatRequest.builder().messages(UserMessage.from("hi")).build();
+
+    @Test
+    void testFailoverWhenProviderThrows() {
+        Stub broken = new Stub(Behaviour.THROW);
+        Stub working = new Stub(Behaviour.STREAM);
+        Recorder recorder = new Recorder();
+
+        routing(broken, working).chat(REQUEST, recorder);
+
+        assertEquals(List.of("token:b", "complete:b"), recorder.events);
+        assertEquals(1, broken.calls.get());
+    }
+
+    @Test
+    void testFailoverOnErrorBeforeFirstToken() {
+        Stub broken = new Stub(Behaviour.ERROR);
+        Stub working = new Stub(Behaviour.STREAM);
+        Recorder recorder = new Recorder();
+
+        RoutingStreamingChatModel model = routing(broken, working);
+        model.chat(REQUEST, recorder);
+
+        assertEquals(List.of("token:b", "complete:b"), recorder.events);
+        // Skipped after 2 consecutive failures
+        model.chat(REQUEST, new Recorder());
+        model.chat(REQUEST, new Recorder());
+        assertEquals(2, broken.calls.get());
+    }
+
+    @Test
+    void testNoFailoverOnceStreaming() {
+        Stub broken = new Stub(Behaviour.STREAM_THEN_ERROR);
+        Stub working = new Stub(Behaviour.STREAM);
+        Recorder recorder = new Recorder();
+
+        routing(broken, working).chat(REQUEST, recorder);
+
+        assertEquals(List.of("token:a", "error:a failed"), recorder.events);
+        assertEquals(0, working.calls.get());
+    }
+
+    @Test
+    void testBusyEverywhereIsThrown() {
+        Stub first = new Stub(Behaviour.BUSY);
+        Stub second = new Stub(Behaviour.BUSY);
+        Recorder recorder = new Recorder();
+        RoutingStreamingChatModel model = routing(first, second);
+
+        assertThrows(ProviderBusyException.class, () -> model.chat(REQUEST, recorder));
+        assertTrue(recorder.events.isEmpty());
+
+        // Busy is not counted as failing
+        assertThrows(ProviderBusyException.class, () -> model.chat(REQUEST, recorder));
+        assertThrows(ProviderBusyException.class, () -> model.chat(REQUEST, recorder));
+        assertEquals(3, first.calls.get());
+    }
+
+    @Test
+    void testErrorWhenAllFail() {
+        Recorder recorder = new Recorder();
+
+        routing(new Stub(Behaviour.ERROR), new Stub(Behaviour.ERROR)).chat(REQUEST, recorder);
+
+        assertEquals(List.of("error:b failed"), recorder.events);
+    }
+
+    private static RoutingStreamingChatModel routing(Stub first, Stub second) {
+        first.name = "a";
+        second.name = "b";
+        return new RoutingStreamingChatModel(List.of(
+                new ProviderRoute("a", null, first),
+                new ProviderRoute("b", null, second)), 2, Duration.ofMinutes(1));
+    }
+
+    private enum Behaviour { STREAM, THROW, BUSY, ERROR, STREAM_THEN_ERROR }
+
+    private static class Stub implements StreamingChatModel {
+        final Behaviour behaviour;
+        final AtomicInteger calls = new AtomicInteger();
+        String name;
+
+        Stub(Behaviour behaviour) {
+            this.behaviour = behaviour;
+        }
+
+        @Override
+        public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+            calls.incrementAndGet();
+            switch (behaviour) {
+                case THROW -> throw new RuntimeException(name + " unreachable");
+                case BUSY -> throw new ProviderBusyException(name + " busy", Duration.ofSeconds(1));
+                case ERROR -> handler.onError(new RuntimeException(name + " failed"));
+                case STREAM_THEN_ERROR -> {
+                    handler.onPartialResponse(name);
+                    handler.onError(new RuntimeException(name + " failed"));
+                }
+                case STREAM -> {
+                    handler.onPartialResponse(name);
+                    handler.onCompleteResponse(ChatResponse.builder().aiMessage(AiMessage.from(name)).build());
+                }
+            }
+        }
+    }
+
+    private static class Recorder implements StreamingChatResponseHandler {
+        final List<String> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onPartialResponse(String partialResponse) {
+            events.add("token:" + partialResponse);
+        }
+
+        @Override
+        public void onCompleteResponse(ChatResponse completeResponse) {
+            events.add("complete:" + completeResponse.aiMessage().text());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            events.add("error:" + error.getMessage());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageDeserializer;
+import dev.langchain4j.data.message.ChatMessageSerializer;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.chappiebot.assist.Assistant;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the stored size and decode cost of the message codecs against the JSON text round trip
+ * (what the JSONB column gives us today).
+ *
+ * Run with: mvn test -Dtest=MessageCodecBenchmarkTest -Dchappie.benchmark=true
+ */
+class MessageCodecBenchmarkTest {
+
+    private static final int WARMUP = 10_000;
+    private static final int ITERATIONS = 20_000;
+
+    @Test
+    void testRoundTrip() {
+        for (MessageCodec codec : codecs()) {
+            for (ChatMessage m : conversation()) {
+                MessageCodec.Encoded encoded = codec.encode(m);
+                assertEquals(m, codec.decode(encoded.json(), encoded.binary()), codec.format() + " " + m.type());
+                assertEquals(ChatMessageDeserializer.messageFromJson(codec.toJson(encoded.json(), encoded.binary())), m);
+            }
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "chappie.benchmark", matches = "true")
+    void benchmark() {
+        List<ChatMessage> messages = conversation();
+
+        System.out.println("\n========================================");
+        System.out.println("MESSAGE CODEC BENCHMARK");
+        System.out.println("========================================");
+        System.out.printf("%-22s %12s %16s%n", "codec", "bytes", "decode ns/msg");
+
+        // Baseline: JSON text as it comes out of the JSONB column
+        List<String> json = messages.stream().map(ChatMessageSerializer::messageToJson).toList();
+        long jsonBytes = json.stream().mapToLong(s -> s.getBytes(StandardCharsets.UTF_8).length).sum();
+        long jsonNs = time(() -> json.forEach(ChatMessageDeserializer::messageFromJson), messages.size());
+        System.out.printf("%-22s %12d %16d%n", "jsonb (current)", jsonBytes, jsonNs);
+
+        for (MessageCodec codec : codecs()) {
+            List<MessageCodec.Encoded> encoded = messages.stream().map(codec::encode).toList();
+            long bytes = encoded.stream()
+                    .mapToLong(e -> e.binary() != null ? e.binary().length : e.json().getBytes(StandardCharsets.UTF_8).length)
+                    .sum();
+            long ns = time(() -> encoded.forEach(e -> codec.decode(e.json(), e.binary())), messages.size());
+            System.out.printf("%-22s %12d %16d%n", label(codec), bytes, ns);
+        }
+        System.out.println("========================================\n");
+    }
+
+    private static List<MessageCodec> codecs() {
+        return List.of(
+            new MessageCodec(MessageCodec.Format.JSON, 0),
+            new MessageCodec(MessageCodec.Format.SMILE, 0),
+            new MessageCodec(MessageCodec.Format.SMILE, 4096),
+            new MessageCodec(MessageCodec.Format.SMILE, 512));
+    }
+
+    private static String label(MessageCodec codec) {
+        if (codec.format() == MessageCodec.Format.JSON) return "json";
+        return codec.compressThreshold() > 0 ? "smile (deflate > " + codec.compressThreshold() + ")" : "smile";
+    }
+
+    private static long time(Runnable oneRound, int messagesPerRound) {
+        for (int i = 0; i < WARMUP; i++) oneRound.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) oneRound.run();
+        return (System.nanoTime() - start) / ((long) ITERATIONS * messagesPerRound);
+    }
+
+    /**
+     * A typical conversation: the rendered system prompt, short prompts, and larger JSON answers with code
+     */
+    private static List<ChatMessage> conversation() {
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(SystemMessage.from(Assistant.SYSTEM_MESSAGE
+                .replace("{{programmingLanguage}}", "Java")
+                .replace("{{programmingLanguageVersion}}", "21")
+                .replace("{{quarkusVersion}}", "3.31.1")
+                .replace("{{responseSchemaPrompt}}", "Respond with a JSON object with the fields answer and niceName.")
+                .replace("{{systemmessage}}", "")));
+        String code = """
+            @ApplicationScoped
+            public class GreetingService {
+                @ConfigProperty(name = "greeting.message", defaultValue = "Hello")
+                String message;
+
+                public String greet(String name) {
+                    return message + " " + name;
+                }
+            }
+            """;
+        for (int i = 0; i < 5; i++) {
+            messages.add(UserMessage.from("[USER PROMPT]\nHow do I inject configuration into a bean (" + i + ")?\n[/USER PROMPT]"));
+            messages.add(AiMessage.from("{\"answer\":\"Use @ConfigProperty on a field of a CDI bean:\\n\\n"
+                    + code.repeat(i + 1).replace("\"", "\\\"").replace("\n", "\\n")
+                    + "\",\"niceName\":\"Config injection\"}"));
+        }
+        return messages;
+    }
+}
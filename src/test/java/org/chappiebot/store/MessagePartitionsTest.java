@@ -0,0 +1,121 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.quarkus.test.common.QuarkusTestResource;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.Test;
+
+import static org.chappiebot.store.PartitionedStoreDbResource.EXPIRED;
+import static org.chappiebot.store.PartitionedStoreDbResource.RECENT;
+import static org.chappiebot.store.PartitionedStoreDbResource.TABLE;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Converting a populated chat message table to monthly partitions, and what runs on it afterwards.
+ * Needs Docker.
+ */
+@QuarkusTest
+@QuarkusTestResource(value = PartitionedStoreDbResource.class, restrictToAnnotatedClass = true)
+public class MessagePartitionsTest {
+
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+
+    @Inject
+    StoreManager storeManager;
+
+    @Inject
+    RetentionSweeper retentionSweeper;
+
+    @Inject
+    DataSource dataSource;
+
+    @Test
+    void testConvertsPopulatedTable() throws SQLException {
+        assertTrue(storeManager.getMessagePartitions().isPresent());
+        assertEquals("p", query("SELECT relkind::text FROM pg_class WHERE oid = '" + TABLE + "'::regclass"));
+        assertEquals(TABLE, query("SELECT inhparent::regclass::text FROM pg_inherits WHERE inhrelid = '" + TABLE + "_legacy'::regclass"));
+        assertEquals("2", query("SELECT count(*) FROM " + TABLE + " WHERE memory_id = '" + RECENT + "'"));
+
+        // A second start finds it converted
+        assertFalse(new MessagePartitions(dataSource, TABLE).convertIfNeeded(2));
+    }
+
+    @Test
+    void testKeyStaysUnique() throws SQLException {
+        // Same key, in another partition than the row that is there
+        SQLException e = assertThrows(SQLException.class, () -> execute("""
+                INSERT INTO %s (memory_id, msg_index, created_at, message_type, message_json)
+                VALUES ('%s', 0, now() + interval '40 days', 'AI', '{"type":"AI","text":"again"}')
+                """.formatted(TABLE, RECENT)));
+        assertEquals("23505", e.getSQLState());
+
+        // Rewriting a conversation deletes its rows first, so that still works
+        JdbcChatMemoryStore store = storeManager.getJdbcChatMemoryStore().orElseThrow();
+        store.updateMessages("unique-key", List.of(SystemMessage.from("Be brief"), UserMessage.from("Hi")));
+        store.updateMessages("unique-key", List.of(SystemMessage.from("Be brief"), UserMessage.from("Hi"), AiMessage.from("Hello")));
+        assertEquals(3, store.getMessages("unique-key").size());
+    }
+
+    @Test
+    void testEnsureAheadAndRemoveBefore() throws SQLException {
+        MessagePartitions partitions = storeManager.getMessagePartitions().orElseThrow();
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        String next = TABLE + "_p" + now.plusMonths(1).format(SUFFIX);
+        String afterNext = TABLE + "_p" + now.plusMonths(2).format(SUFFIX);
+
+        // This month is still in the converted table
+        partitions.ensureAhead(2);
+        assertNotNull(query("SELECT to_regclass('" + afterNext + "')::text"));
+
+        OffsetDateTime endOfNext = now.plusMonths(2).atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC);
+        assertEquals(List.of(next), partitions.removeBefore(endOfNext, true));
+        assertEquals("0", query("SELECT count(*) FROM pg_inherits WHERE inhrelid = '" + next + "'::regclass"));
+        assertEquals(List.of(afterNext), partitions.removeBefore(endOfNext.plusMonths(1), false));
+        assertNull(query("SELECT to_regclass('" + afterNext + "')::text"));
+
+        // Put them back for the other tests
+        execute("DROP TABLE " + next);
+        partitions.ensureAhead(2);
+        assertNotNull(query("SELECT to_regclass('" + next + "')::text"));
+    }
+
+    @Test
+    void testSweeperRemovesExpiredConversations() throws Exception {
+        // The sweep skips conversations that are locked, as they are for a moment while the store indexes them for search
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        String expired = "SELECT count(*) FROM " + TABLE + " WHERE memory_id = '" + EXPIRED + "'";
+        retentionSweeper.sweep();
+        while (!"0".equals(query(expired)) && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+            retentionSweeper.sweep();
+        }
+        assertEquals("0", query(expired));
+        assertEquals("2", query("SELECT count(*) FROM " + TABLE + " WHERE memory_id = '" + RECENT + "'"));
+    }
+
+    private String query(String sql) throws SQLException {
+        try (Connection c = dataSource.getConnection(); Statement st = c.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection c = dataSource.getConnection(); Statement st = c.createStatement()) {
+            st.execute(sql);
+        }
+    }
+}
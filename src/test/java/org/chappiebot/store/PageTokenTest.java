@@ -0,0 +1,37 @@
+package org.chappiebot.store;
+
+import java.time.OffsetDateTime;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for the keyset pagination token used by the store endpoint.
+ */
+class PageTokenTest {
+
+    @Test
+    void testRoundTrip() {
+        PageToken token = new PageToken(OffsetDateTime.parse("2025-11-03T10:15:30.123456+02:00"), "abc|def-123");
+        PageToken decoded = PageToken.decode(token.encode());
+        assertEquals(token, decoded);
+    }
+
+    @Test
+    void testEncodedIsUrlSafe() {
+        PageToken token = new PageToken(OffsetDateTime.parse("2025-11-03T10:15:30Z"), "?/+=&");
+        assertTrue(token.encode().matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    void testNoToken() {
+        assertNull(PageToken.decode(null));
+        assertNull(PageToken.decode(" "));
+    }
+
+    @Test
+    void testInvalidToken() {
+        assertThrows(IllegalArgumentException.class, () -> PageToken.decode("not a token"));
+        assertThrows(IllegalArgumentException.class, () -> PageToken.decode("bm8tc2VwYXJhdG9y"));
+    }
+}
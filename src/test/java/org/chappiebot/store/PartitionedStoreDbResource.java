@@ -0,0 +1,79 @@
+package org.chappiebot.store;
+
+import io.quarkus.test.common.QuarkusTestResourceLifecycleManager;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+/**
+ * A database with a chat message table as it was before partitioning, already holding a conversation that is past
+ * the retention period and one that is not, so the store converts a populated table when it starts.
+ */
+public class PartitionedStoreDbResource implements QuarkusTestResourceLifecycleManager {
+
+    static final String TABLE = "chappie_chat_messages";
+    static final String EXPIRED = "expired-conversation";
+    static final String RECENT = "recent-conversation";
+
+    private PostgreSQLContainer<?> db;
+
+    @Override
+    public Map<String, String> start() {
+        DockerImageName image = DockerImageName.parse(System.getProperty("store.image", "pgvector/pgvector:pg16"))
+                .asCompatibleSubstituteFor("postgres");
+        db = new PostgreSQLContainer<>(image)
+                .withDatabaseName("postgres")
+                .withUsername("postgres")
+                .withPassword("postgres");
+        db.start();
+        seed();
+
+        Map<String, String> props = new HashMap<>();
+        props.put("quarkus.datasource.devservices.enabled", "false");
+        props.put("quarkus.datasource.jdbc.url", db.getJdbcUrl());
+        props.put("quarkus.datasource.username", db.getUsername());
+        props.put("quarkus.datasource.password", db.getPassword());
+        props.put("chappie.store.partitioning.enabled", "true");
+        props.put("chappie.store.partitioning.months-ahead", "2");
+        props.put("chappie.store.retention.period", "P180D");
+        return props;
+    }
+
+    private void seed() {
+        String user = "{\"type\":\"USER\",\"contents\":[{\"type\":\"TEXT\",\"text\":\"How do I add a REST endpoint?\"}]}";
+        String ai = "{\"type\":\"AI\",\"text\":\"Add quarkus-rest and annotate a class with @Path.\"}";
+        try (Connection c = DriverManager.getConnection(db.getJdbcUrl(), db.getUsername(), db.getPassword());
+             Statement st = c.createStatement()) {
+            st.execute("""
+                CREATE TABLE %s (
+                  memory_id    VARCHAR(200) NOT NULL,
+                  msg_index    INTEGER      NOT NULL,
+                  created_at   TIMESTAMPTZ  NOT NULL DEFAULT now(),
+                  message_json JSONB        NOT NULL,
+                  last_modified TIMESTAMPTZ  NOT NULL DEFAULT now(),
+                  PRIMARY KEY (memory_id, msg_index)
+                )
+                """.formatted(TABLE));
+            st.execute("CREATE INDEX idx_%s_mid ON %s(memory_id)".formatted(TABLE, TABLE));
+            for (String memoryId : new String[]{EXPIRED, RECENT}) {
+                String at = EXPIRED.equals(memoryId) ? "now() - interval '400 days'" : "now()";
+                st.execute("""
+                    INSERT INTO %s (memory_id, msg_index, created_at, message_json, last_modified)
+                    VALUES ('%s', 0, %s, '%s', %s), ('%s', 1, %s, '%s', %s)
+                    """.formatted(TABLE, memoryId, at, user, at, memoryId, at, ai, at));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not seed the chat message table", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (db != null) db.stop();
+    }
+}
@@ -0,0 +1,37 @@
+package org.chappiebot.store;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for the keyset pagination token used by the conversation search.
+ */
+class SearchPageTokenTest {
+
+    @Test
+    void testRoundTripIsExact() {
+        SearchPageToken token = new SearchPageToken(0.1f / 3, "abc|def-123");
+        SearchPageToken decoded = SearchPageToken.decode(token.encode());
+        assertEquals(token, decoded);
+        assertEquals(Float.floatToIntBits(token.rank()), Float.floatToIntBits(decoded.rank()));
+    }
+
+    @Test
+    void testEncodedIsUrlSafe() {
+        assertTrue(new SearchPageToken(1.5f, "?/+=&").encode().matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    void testNoToken() {
+        assertNull(SearchPageToken.decode(null));
+        assertNull(SearchPageToken.decode(""));
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> SearchPageToken.decode("not a token"));
+        assertThrows(IllegalArgumentException.class, () -> SearchPageToken.decode(new PageToken(
+                java.time.OffsetDateTime.parse("2025-11-03T10:15:30Z"), "x").encode()));
+    }
+}
@@ -0,0 +1,45 @@
+package org.chappiebot.store;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test for the token estimate used by the token window memory.
+ */
+class TokenEstimatorTest {
+
+    private final TokenEstimator estimator = new TokenEstimator();
+
+    @Test
+    void testText() {
+        assertEquals(0, estimator.estimateTokenCountInText(null));
+        assertEquals(0, estimator.estimateTokenCountInText("  \n"));
+        assertEquals(1, estimator.estimateTokenCountInText("word"));
+        assertEquals(2, estimator.estimateTokenCountInText("words"));
+        assertEquals(5, estimator.estimateTokenCountInText("a.b()"));
+    }
+
+    @Test
+    void testStackTraceCountsMoreThanProse() {
+        String prose = "The application fails to start as the datasource is not there";
+        String trace = "at io.quarkus.runtime.Application.start(Application.java:101)";
+        assertEquals(prose.length(), trace.length());
+        assertTrue(estimator.estimateTokenCountInText(trace) > estimator.estimateTokenCountInText(prose));
+        assertTrue(estimator.estimateTokenCountInText(trace) > trace.length() / 6);
+    }
+
+    @Test
+    void testMessages() {
+        int system = estimator.estimateTokenCountInMessage(SystemMessage.from("You are CHAPPiE"));
+        int user = estimator.estimateTokenCountInMessage(UserMessage.from("Hello there"));
+        int ai = estimator.estimateTokenCountInMessage(AiMessage.from("{\"answer\":\"Hi\"}"));
+        assertTrue(system > 0 && user > 0 && ai > 0);
+        assertEquals(system + user + ai, estimator.estimateTokenCountInMessages(List.of(
+                SystemMessage.from("You are CHAPPiE"), UserMessage.from("Hello there"), AiMessage.from("{\"answer\":\"Hi\"}"))));
+    }
+}